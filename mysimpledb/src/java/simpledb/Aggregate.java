@@ -1,125 +1,346 @@
 package simpledb;
+
+import java.io.IOException;
 import java.util.*;
+
 /**
-* The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
-* min). Note that we only support aggregates over a single column, grouped by a
-* single column.
-*/
+ * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
+ * min). Note that we only support aggregates over a single column, grouped by a
+ * single column.
+ * <p/>
+ * Groups are kept in memory up to a memory budget. Past it, the state of
+ * every group so far is hash-partitioned on the group key into temporary
+ * files and the aggregation starts over with no groups. Each partition is
+ * then aggregated on its own by merging its partial states; one that still
+ * has too many groups is partitioned again on other bits of the hash.
+ * Output order is then by partition.
+ */
 public class Aggregate extends Operator {
-private static final long serialVersionUID = 1L;
-private DbIterator children[];
-private int afield;
-private int gfield;
-private Aggregator.Op aop;
-/**
-* Constructor.
-* <p/>
-* Implementation hint: depending on the type of afield, you will want to
-* construct an {@link IntAggregator} or {@link StringAggregator} to help
-* you with your implementation of readNext().
-*
-* @param child The DbIterator that is feeding us tuples.
-* @param afield The column over which we are computing an aggregate.
-* @param gfield The column over which we are grouping the result, or -1 if
-* there is no grouping
-* @param aop The aggregation operator to use
-*/
-public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
-this.children = new DbIterator[1];
-children[0] = child;
-this.afield = afield;
-this.gfield = gfield;
-this.aop = aop;
-}
-/**
-* @return If this aggregate is accompanied by a groupby, return the groupby
-* field index in the <b>INPUT</b> tuples. If not, return
-* {@link simpledb.Aggregator#NO_GROUPING}
-*/
-public int groupField() {
-// some code goes here
-return gfield;
-}
-/**
-* @return If this aggregate is accompanied by a group by, return the name
-* of the groupby field in the <b>OUTPUT</b> tuples If not, return
-* null;
-*/
-public String groupFieldName() {
-// some code goes here
-return children[0].getTupleDesc().getFieldName(gfield);
-}
-/**
-* @return the aggregate field
-*/
-public int aggregateField() {
-// some code goes here
-return afield;
-}
-/**
-* @return return the name of the aggregate field in the <b>OUTPUT</b>
-* tuples
-*/
-public String aggregateFieldName() {
-// some code goes here
-return children[0].getTupleDesc().getFieldName(afield);
-}
-/**
-* @return return the aggregate operator
-*/
-public Aggregator.Op aggregateOp() {
-// some code goes here
-return aop;
-}
-public static String nameOfAggregatorOp(Aggregator.Op aop) {
-return aop.toString();
-}
-public void open() throws NoSuchElementException, DbException,
-TransactionAbortedException {
-super.open();
-children[0].open();
-}
-/**
-* Returns the next tuple. If there is a group by field, then the first
-* field is the field by which we are grouping, and the second field is the
-* result of computing the aggregate, If there is no group by field, then
-* the result tuple should contain one field representing the result of the
-* aggregate. Should return null if there are no more tuples.
-*/
-protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-return null;
-}
-public void rewind() throws DbException, TransactionAbortedException {
-super.close();
-children[0].close();
-super.open();
-children[0].open();
-}
-/**
-* Returns the TupleDesc of this Aggregate. If there is no group by field,
-* this will have one field - the aggregate column. If there is a group by
-* field, the first field will be the group by field, and the second will be
-* the aggregate value column.
-* <p/>
-* The name of an aggregate column should be informative. For example:
-* "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
-* given in the constructor, and child_td is the TupleDesc of the child
-* iterator.
-*/
-public TupleDesc getTupleDesc() {
-return children[0].getTupleDesc();
-}
-public void close() {
-super.close();
-this.close();
-}
-@Override
-public DbIterator[] getChildren() {
-// some code goes here
-return children;
-}
-@Override
-public void setChildren(DbIterator[] children) {
-this.children = children;
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default memory budget for the groups, in bytes. Can be overridden
+     * with the simpledb.AggregateMemory system property.
+     */
+    public static final long DEFAULT_MEMORY = 64L << 20;
+
+    //Rough heap cost of a group, beyond a STRING key
+    private static final int GROUP_OVERHEAD = 64;
+
+    private DbIterator children[];
+    private int afield;
+    private int gfield;
+    private Aggregator.Op aop;
+    private final long memory;
+
+    //The results of the groups held in memory
+    private transient DbIterator results = null;
+    //Once spilled: the first-pass partitions, kept until close for rewind,
+    //and the partitions still to aggregate
+    private transient ArrayList<Partition> partitions = null;
+    private transient LinkedList<Partition> pending = null;
+    //Number of partitions written, including repartitioning
+    transient int partitionsWritten = 0;
+
+    //Partial group states, all of whose keys share their hash bits below level
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Constructor.
+     * <p/>
+     * Implementation hint: depending on the type of afield, you will want to
+     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
+     * you with your implementation of readNext().
+     *
+     * @param child  The DbIterator that is feeding us tuples.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, Long.getLong("simpledb.AggregateMemory", DEFAULT_MEMORY));
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memory bytes the groups may use before the aggregate spills
+     *               them to disk
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, long memory) {
+        this.children = new DbIterator[1];
+        children[0] = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.memory = memory;
+        // fail now rather than in open
+        newAggregator();
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the groupby
+     * field index in the <b>INPUT</b> tuples. If not, return
+     * {@link simpledb.Aggregator#NO_GROUPING}
+     */
+    public int groupField() {
+        return gfield;
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a group by, return the name
+     * of the groupby field in the <b>OUTPUT</b> tuples If not, return
+     * null;
+     */
+    public String groupFieldName() {
+        if (gfield == Aggregator.NO_GROUPING)
+            return null;
+        return children[0].getTupleDesc().getFieldName(gfield);
+    }
+
+    /**
+     * @return the aggregate field
+     */
+    public int aggregateField() {
+        return afield;
+    }
+
+    /**
+     * @return return the name of the aggregate field in the <b>OUTPUT</b>
+     * tuples
+     */
+    public String aggregateFieldName() {
+        return children[0].getTupleDesc().getFieldName(afield);
+    }
+
+    /**
+     * @return return the aggregate operator
+     */
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    public static String nameOfAggregatorOp(Aggregator.Op aop) {
+        return aop.toString();
+    }
+
+    private Aggregator newAggregator() {
+        TupleDesc td = children[0].getTupleDesc();
+        Type gtype = gfield == Aggregator.NO_GROUPING ? null : td.getFieldType(gfield);
+        if (td.getFieldType(afield) == Type.INT_TYPE)
+            return new IntegerAggregator(gfield, gtype, afield, aop);
+        return new StringAggregator(gfield, gtype, afield, aop);
+    }
+
+    // The group states of an aggregator
+    private static IntegerAggregator state(Aggregator agg) {
+        if (agg instanceof StringAggregator)
+            return ((StringAggregator) agg).counts();
+        return (IntegerAggregator) agg;
+    }
+
+    private int maxGroups() {
+        long groupSize = GROUP_OVERHEAD;
+        if (gfield != Aggregator.NO_GROUPING)
+            groupSize += children[0].getTupleDesc().getFieldType(gfield).getLen();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memory / groupSize));
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        super.open();
+        children[0].open();
+        aggregate();
+    }
+
+    // Aggregates the child, spilling partial states past the memory budget
+    private void aggregate() throws DbException, TransactionAbortedException {
+        Aggregator agg = newAggregator();
+        IntegerAggregator groups = state(agg);
+        int maxGroups = maxGroups();
+        SpillFile[] parts = null;
+        try {
+            while (children[0].hasNext()) {
+                agg.mergeTupleIntoGroup(children[0].next());
+                if (groups.numGroups() > maxGroups)
+                    parts = spill(groups, parts, 0);
+            }
+            if (parts == null) {
+                results = agg.iterator();
+                results.open();
+                return;
+            }
+            parts = spill(groups, parts, 0);
+        } catch (IOException e) {
+            throw new DbException("Aggregate: could not spill groups: " + e);
+        }
+        partitions = new ArrayList<Partition>();
+        for (SpillFile part : parts) {
+            partitions.add(new Partition(part, 0));
+        }
+        pending = new LinkedList<Partition>(partitions);
+        Debug.log("Aggregate on %s: spilled into %d partitions", aggregateFieldName(), partitionsWritten);
+    }
+
+    // Writes the group states into the partitions of their keys at level,
+    // creating the partitions first if parts is null, and drops the groups
+    private SpillFile[] spill(IntegerAggregator groups, SpillFile[] parts, int level)
+            throws IOException {
+        if (parts == null) {
+            parts = new SpillFile[HashEquiJoin.FANOUT];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = new SpillFile(groups.partialTupleDesc());
+            }
+            partitionsWritten += parts.length;
+        }
+        boolean grouped = gfield != Aggregator.NO_GROUPING;
+        Iterator<Tuple> it = groups.partials();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            parts[grouped ? HashEquiJoin.partition(t.getField(0), level) : 0].add(t);
+        }
+        groups.clear();
+        return parts;
+    }
+
+    // Merges the partial states of the next partition into results; a
+    // partition with too many groups is partitioned again instead
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (pending == null || pending.isEmpty())
+            return false;
+        Partition part = pending.removeFirst();
+        IntegerAggregator groups = state(newAggregator());
+        int maxGroups = maxGroups();
+        SpillFile[] parts = null;
+        try {
+            SpillFile.Reader in = part.file.reader();
+            try {
+                while (in.hasNext()) {
+                    groups.mergePartial(in.next());
+                    if (groups.numGroups() > maxGroups && part.level + 1 < HashEquiJoin.MAX_LEVEL)
+                        parts = spill(groups, parts, part.level + 1);
+                }
+            } finally {
+                in.close();
+            }
+            if (part.level > 0)
+                part.file.delete();
+            if (parts != null) {
+                parts = spill(groups, parts, part.level + 1);
+                for (int i = parts.length - 1; i >= 0; i--) {
+                    pending.addFirst(new Partition(parts[i], part.level + 1));
+                }
+                results = null;
+                return true;
+            }
+        } catch (IOException e) {
+            throw new DbException("Aggregate: could not read partitions: " + e);
+        }
+        results = groups.iterator();
+        results.open();
+        return true;
+    }
+
+    /**
+     * Returns the next tuple. If there is a group by field, then the first
+     * field is the field by which we are grouping, and the second field is the
+     * result of computing the aggregate, If there is no group by field, then
+     * the result tuple should contain one field representing the result of the
+     * aggregate. Should return null if there are no more tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (results == null || !results.hasNext()) {
+            if (!nextPartition())
+                return null;
+        }
+        return results.next();
+    }
+
+    /**
+     * The groups are not computed again: the results in memory are rewound,
+     * or, once spilled, the aggregate starts over from the first-pass
+     * partitions.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (partitions != null) {
+            dropPartitions();
+            pending = new LinkedList<Partition>(partitions);
+            results = null;
+        } else if (results != null) {
+            results.rewind();
+        }
+    }
+
+    // Deletes the partitions made after the first pass
+    private void dropPartitions() {
+        if (pending != null) {
+            for (Partition part : pending) {
+                if (part.level > 0)
+                    part.file.delete();
+            }
+            pending = null;
+        }
+    }
+
+    /**
+     * Returns the TupleDesc of this Aggregate. If there is no group by field,
+     * this will have one field - the aggregate column. If there is a group by
+     * field, the first field will be the group by field, and the second will be
+     * the aggregate value column.
+     * <p/>
+     * The name of an aggregate column should be informative. For example:
+     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
+     * given in the constructor, and child_td is the TupleDesc of the child
+     * iterator.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc child = children[0].getTupleDesc();
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        if (gfield != Aggregator.NO_GROUPING) {
+            types.add(child.getFieldType(gfield));
+            names.add(child.getFieldName(gfield));
+        }
+        types.add(Type.INT_TYPE);
+        names.add(nameOfAggregatorOp(aop) + " (" + child.getFieldName(afield) + ")");
+        if (aop == Aggregator.Op.SUM_COUNT) {
+            types.add(Type.INT_TYPE);
+            names.add("count (" + child.getFieldName(afield) + ")");
+        }
+        return new TupleDesc(types.toArray(new Type[types.size()]),
+                names.toArray(new String[names.size()]));
+    }
+
+    public void close() {
+        super.close();
+        children[0].close();
+        dropPartitions();
+        if (partitions != null) {
+            for (Partition part : partitions) {
+                part.file.delete();
+            }
+            partitions = null;
+        }
+        results = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
 }
-}
\ No newline at end of file
@@ -2,214 +2,18 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-
-class Lock {
-	TransactionId tid;
-	Permissions perm;
-
-	Lock(TransactionId tid, Permissions perm) {
-		this.tid = tid;
-		this.perm = perm;
-	}
-
-	public boolean equals(Object o) {
-		Lock other;
-		if (o instanceof Lock) {
-			other = (Lock)o;
-		} else {
-			return false;
-		}
-		return this.tid.equals(other.tid) && this.perm.equals(other.perm);		
-	}
-
-	public String toString() {
-		String ret = "";
-		ret+="Tid: " + tid;
-		ret+=" Perm: " + perm;
-		return ret;
-	}
-}
-
-class LockEntry {
-	HashSet<TransactionId> active = new HashSet<TransactionId>();
-	LinkedList<Lock> waitingRequests = new LinkedList<Lock>();
-	boolean isReadOnly;
-
-	LockEntry(TransactionId tid, Permissions perm) {
-		set(tid,perm);
-	}
-
-	void set(TransactionId tid, Permissions perm) {
-		if(active.size()==0) {
-			active.add(tid);
-			isReadOnly = perm.equals(Permissions.READ_ONLY);
-		}
-	}
-
-	void set(Lock l) {
-		set(l.tid,l.perm);
-	}
-
-	boolean add(TransactionId tid, Permissions perm) {
-		if(isReadOnly && perm.equals(Permissions.READ_ONLY)) {
-			active.add(tid);
-			return true;
-		}
-		return false;
-	}
-
-	boolean containsTid(TransactionId tid) {
-		return active.contains(tid);
-	}
-
-	public String toString() {
-		String ret = "";
-		ret += "Active: ";
-		ret += active + "\n";
-		ret += "Queue: ";
-		ret += waitingRequests;
-		return ret;
-	}
-}
-
-class LockManager {
-	private HashMap<PageId,LockEntry> locks = new HashMap<PageId,LockEntry>();
-
-
-	public void acquireLock(PageId pid,TransactionId tid,Permissions perm) 
-			throws TransactionAbortedException {
-		LockEntry lockentry; 
-		Lock lock = new Lock(tid, perm);    	
-
-		synchronized (this) {
-			lockentry =  locks.get(pid);
-			//No lock has been taken out on this page.
-			if(lockentry==null) {
-				LockEntry le = new LockEntry(tid,perm);
-				locks.put(pid,le);   
-				return;
-			}
-			//LockEntry is initialized, but not in use, add new lock to active set
-			if(lockentry.active.size() == 0) {
-				lockentry.active.add(tid);
-				lockentry.isReadOnly = perm.equals(Permissions.READ_ONLY);
-				return;
-			}
-
-			//Read lock request, r/w lock already held 
-			if(lockentry.containsTid(tid) && perm.equals(Permissions.READ_ONLY) && !lockentry.isReadOnly) {
-				return;
-			}
-
-			//Lock is read only, add read only lock request to active set
-			if(lockentry.isReadOnly && perm.equals(Permissions.READ_ONLY)) {
-				lockentry.active.add(tid);
-				return;
-			}
-
-			//Upgrade: Lock is read-only, acquisition request is r/w
-			if(perm.equals(Permissions.READ_WRITE) && lockentry.containsTid(tid)) {
-				if(lockentry.active.size() > 1) {
-					lockentry.waitingRequests.push(lock);
-				} else {
-					lockentry.isReadOnly = false;
-					return;
-				}
-			}
-			//Normal case: if lock is not in waiting queue, add
-			if(!lockentry.waitingRequests.contains(lock)) {
-				lockentry.waitingRequests.add(lock);
-			}
-		}
-		long start = System.currentTimeMillis();
-		int maximum = 2000;
-
-		//Spin wait until in the active set
-		while(lockentry.waitingRequests.contains(lock)) {
-			//spi
-			if (System.currentTimeMillis()-start > maximum) {
-				throw new TransactionAbortedException();
-			}
-		}		
-	}
-
-	public synchronized void releaseLock(PageId pid,TransactionId tid) {
-		LockEntry lockentry = locks.get(pid);
-
-		//Remove locks in active set
-		if(lockentry.active.contains(tid)) {
-			lockentry.active.remove(tid);
-		} 
-
-		//If there are no other transactions using this lock, add new locks from queue.
-		//If there is an item on queue, add it
-		if(lockentry.waitingRequests.size() >0) {	
-			if(lockentry.active.size()==1) {
-				Lock l = lockentry.waitingRequests.peek();
-				if(lockentry.active.contains(l.tid)) {
-					if(l.perm.equals(Permissions.READ_WRITE)) {
-						//Frees the spin-waiting lock request
-						lockentry.waitingRequests.pop();
-						lockentry.isReadOnly= false;
-					}
-				}
-			}    		
-			if(lockentry.active.size()==0) {
-				Lock l = lockentry.waitingRequests.peek();					
-				lockentry.set(l);
-				lockentry.waitingRequests.pop();
-				// If this item is read only, and there are items on queue
-				if(lockentry.isReadOnly && lockentry.waitingRequests.size() >0) {
-					Lock read = lockentry.waitingRequests.peek();
-
-					//Add items to active set from queue until requests are r/w or there are no requests
-					//Only pop prior to add
-					while (read!=null && read.perm.equals(Permissions.READ_ONLY)) {
-						lockentry.active.add(read.tid);
-						lockentry.waitingRequests.pop();
-						read = lockentry.waitingRequests.peek();
-					}
-				}
-			}
-		}
-	}
-
-	public boolean checkLock(TransactionId tid, PageId p) {
-		if(locks.get(p)==null) {
-			return false;
-		}
-		return locks.get(p).containsTid(tid);
-	}
-
-	//Removes all Locks that have tid
-	public synchronized void abort(TransactionId tid) {
-		Iterator<PageId> it = locks.keySet().iterator();
-		while(it.hasNext()) {
-			PageId pid = it.next();
-			LockEntry le = locks.get(pid);
-			HashSet<Lock> removeLocks = new HashSet<Lock>();
-			for(Lock l : le.waitingRequests) {
-				if(l.tid.equals(tid)) {
-					removeLocks.add(l);
-				}
-			}
-			le.waitingRequests.removeAll(removeLocks);
-			if(le.containsTid(tid)) {
-				releaseLock(pid,tid);
-			}
-
-		}
-	}
-
-	public String toString() {
-		return locks.toString();
-	}
-}
-
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -237,9 +41,50 @@ public class BufferPool {
 	 */
 	public static final int DEFAULT_PAGES = 50;
 
-	private LinkedList<Page> cache;
+	/**
+	 * Frame table keyed by page id. Iteration order is access order, so the
+	 * least recently used page is always first and lookup, promotion and
+	 * removal are all O(1).
+	 */
+	private LinkedHashMap<PageId,Page> cache;
 	private int maxSize;
 	private LockManager manager = new LockManager();
+	//Pages each transaction dirtied through insertTuple/deleteTuple
+	private HashMap<TransactionId,HashSet<PageId>> dirtied = new HashMap<TransactionId,HashSet<PageId>>();
+	//Dirty page table: for each page changed since it was last written, the
+	//end of the log when it was first changed (its recovery LSN)
+	private HashMap<PageId,Long> recLsns = new HashMap<PageId,Long>();
+
+	/**
+	 * Default number of pages a sequential scan asks to have loaded ahead of
+	 * the page it is on. Can be overridden with the simpledb.ReadAhead
+	 * system property; 0 turns read-ahead off.
+	 */
+	public static final int DEFAULT_READ_AHEAD = 8;
+
+	//Background readers for read-ahead, shared by every pool
+	private static final ExecutorService readers = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "BufferPool read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile int readAhead = Integer.getInteger("simpledb.ReadAhead", DEFAULT_READ_AHEAD);
+	//Read-ahead requests that have not finished yet
+	private ConcurrentHashMap<PageId,ReadAhead> readingAhead = new ConcurrentHashMap<PageId,ReadAhead>();
+
+	//Background writer for checkpoints, shared by every pool
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "BufferPool writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	//The last pass of the writer over this pool, and whether it must stop
+	private Future<?> writing = null;
+	private volatile boolean stopWriting = false;
 
 	/**
 	 * Creates a BufferPool that caches up to numPages pages.
@@ -248,7 +93,7 @@ public class BufferPool {
 	 */
 	public BufferPool(int numPages) {
 		maxSize = numPages;
-		this.cache = new LinkedList<Page>();
+		this.cache = new LinkedHashMap<PageId,Page>(numPages, 0.75f, true);
 	}
 
 	public static int getPageSize() {
@@ -278,35 +123,128 @@ public class BufferPool {
 	public Page getPage(TransactionId tid, PageId pid, Permissions perm)
 			throws TransactionAbortedException, DbException {
 		/*
-		 * For now (now being Lab 1), I used an LRU removal policy using a queue in which 
-		 * the most recently used page is appended to the rear.
-		 * This is clearly subject to change.
+		 * LRU removal policy: the frame table is kept in access order, so every
+		 * hit moves the page to the most recently used end.
 		 */
 		manager.acquireLock(pid,tid,perm);
 
 		Page pg = find(pid);
 		if (pg==null) {
+			//A scan may already have asked for this page to be read
+			ReadAhead ahead = readingAhead.get(pid);
+			if (ahead != null) {
+				ahead.await();
+				pg = find(pid);
+				if (pg != null) {
+					return pg;
+				}
+			}
 			int tableid = pid.getTableId();        	
 			pg = Database.getCatalog().getDatabaseFile(tableid).readPage(pid);
 			synchronized (this) {
+				//Another transaction may have loaded the page while we were reading it
+				Page cached = cache.get(pid);
+				if(cached != null) {
+					return cached;
+				}
+				//A read-ahead that started before our read must not install its copy later
+				staleReadAhead(pid);
 				if(cache.size()>= maxSize){
 					evictPage();
 				}
-				cache.push(pg);
+				cache.put(pid,pg);
 			}
 		}
 		return pg;
 	}
 
+	//Keeps a pending read-ahead of pid from installing its copy, which may
+	//be older than the page on disk or in the pool. Called whenever the page
+	//is loaded, written, discarded or evicted, holding the BufferPool monitor.
+	private void staleReadAhead(PageId pid) {
+		ReadAhead ahead = readingAhead.get(pid);
+		if(ahead != null) {
+			ahead.stale = true;
+		}
+	}
+
+	//Looks up a cached page, promoting it to most recently used
 	private synchronized Page find(PageId pid) {
-		for(Page pg:cache) {
-			if (pg.getId().equals(pid)) {
-				cache.remove(pg);
-				cache.push(pg); //Puts most recently accessed page at the top?
-				return pg;		//LRU policy
+		return cache.get(pid);
+	}
+
+	/**
+	 * @return the number of pages a sequential scan should ask to have read
+	 * ahead of the page it is on
+	 */
+	public int getReadAhead() {
+		return readAhead;
+	}
+
+	public void setReadAhead(int pages) {
+		readAhead = pages;
+	}
+
+	/**
+	 * Asks for a page to be loaded into the pool in the background, because
+	 * a scan is about to fetch it. No lock is taken: the page is only cached,
+	 * and getPage still locks it as usual. Pages that are already cached or
+	 * being read are ignored, and a read-ahead page is dropped when the pool
+	 * is full, so it never evicts a page a transaction is about to use.
+	 *
+	 * @param pid the ID of the page that will be requested soon
+	 */
+	public void readAhead(PageId pid) {
+		synchronized (this) {
+			if(cache.containsKey(pid)) {
+				return;
+			}
+		}
+		ReadAhead r = new ReadAhead(pid);
+		if(readingAhead.putIfAbsent(pid,r) == null) {
+			readers.execute(r);
+		}
+	}
+
+	/**
+	 * A background read of one page. getPage waits for a pending read
+	 * instead of reading the page again.
+	 */
+	private class ReadAhead implements Runnable {
+		final PageId pid;
+		//Set if the page was loaded, written or dropped meanwhile; our copy may be older
+		volatile boolean stale = false;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		ReadAhead(PageId pid) {
+			this.pid = pid;
+		}
+
+		public void run() {
+			try {
+				Page pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+				synchronized (BufferPool.this) {
+					if(pg == null || stale || cache.containsKey(pid) || cache.size() >= maxSize) {
+						return;
+					}
+					cache.put(pid,pg);
+				}
+			} catch (Exception e) {
+				//Only a hint, e.g. the table may be gone; getPage reads the page itself
+				Debug.log("BufferPool: read-ahead of %s failed: %s", pid, e);
+			} finally {
+				readingAhead.remove(pid,this);
+				done.countDown();
+			}
+		}
+
+		void await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
-		return null;
 	}
 
 	/**
@@ -347,37 +285,34 @@ public class BufferPool {
 	 */
 	public void transactionComplete(TransactionId tid, boolean commit)
 			throws IOException {
+		//Only the pages this transaction locked or dirtied need attention
+		HashSet<PageId> touched = manager.getLockedPages(tid);
 		//Transaction commits successfully, flush pages to disk.
-		HashSet<Page> toRemove = new HashSet<Page>();
 		if(commit) {
 			synchronized(this) {
-				for(Page p: cache) {
-					if(holdsLock(tid,p.getId())){
-						toRemove.add(p);	
+				touched.addAll(takeDirtied(tid));
+				for(PageId pid : touched) {
+					Page p = cache.get(pid);
+					if(p != null) {
+						p.setBeforeImage();
 					}
 				}
-
-				for(Page p : toRemove) {
-					p.setBeforeImage();
-					flushPage(p.getId());
-					releasePage(tid, p.getId());
-				}
-
-				//flushPages(tid);
+			}
+			flushPages(touched);
+			synchronized(this) {
 				manager.abort(tid);
 			}
 
 			//Transaction failed to commit,	remove dirty pages.
 		} else {
 			synchronized (this) {
-				for(Page p: cache) {
-					if(holdsLock(tid,p.getId())) {
-						toRemove.add(p);
-					}
-				}
-				for(Page p : toRemove) {
-					if(p.isDirty()!= null && p.isDirty().equals(tid)) {
-						cache.remove(p);
+				touched.addAll(takeDirtied(tid));
+				for(PageId pid : touched) {
+					Page p = cache.get(pid);
+					if(p != null && p.isDirty()!= null && p.isDirty().equals(tid)) {
+						cache.remove(pid);
+						recLsns.remove(pid);
+						staleReadAhead(pid);
 					}
 				}
 				manager.abort(tid);
@@ -385,6 +320,26 @@ public class BufferPool {
 		}
 	}
 
+	//Records that tid dirtied pid. Caller must hold the BufferPool monitor.
+	private void noteDirtied(TransactionId tid, PageId pid) {
+		HashSet<PageId> pages = dirtied.get(tid);
+		if(pages == null) {
+			pages = new HashSet<PageId>();
+			dirtied.put(tid,pages);
+		}
+		pages.add(pid);
+		//its changes are logged later than this, when it is flushed
+		if(!recLsns.containsKey(pid)) {
+			recLsns.put(pid,Database.getLogFile().getEndLsn());
+		}
+	}
+
+	//Removes and returns the pages tid dirtied. Caller must hold the BufferPool monitor.
+	private HashSet<PageId> takeDirtied(TransactionId tid) {
+		HashSet<PageId> pages = dirtied.remove(tid);
+		return pages == null ? new HashSet<PageId>() : pages;
+	}
+
 	/**
 	 * Add a tuple to the specified table on behalf of transaction tid.  Will
 	 * acquire a write lock on the page the tuple is added to and any other
@@ -406,9 +361,9 @@ public class BufferPool {
 		ArrayList<Page> arr = file.insertTuple(tid, t);
 		for(Page p: arr) {
 			synchronized (this) {
-				cache.remove(p);
 				p.markDirty(true, tid);
-				cache.push(p);
+				cache.put(p.getId(),p);
+				noteDirtied(tid,p.getId());
 			}
 		}
 	}
@@ -427,12 +382,16 @@ public class BufferPool {
 	 */
 	public void deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		PageId pid = t.getRecordId().getPageId();
-		HeapPage pg = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-		pg.deleteTuple(t);
-		cache.remove(pg);
-		pg.markDirty(true, tid);
-		cache.push(pg);
+		//Go through the file, so that it can keep track of its free space
+		DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+		ArrayList<Page> arr = file.deleteTuple(tid, t);
+		for(Page p: arr) {
+			synchronized (this) {
+				p.markDirty(true, tid);
+				cache.put(p.getId(),p);
+				noteDirtied(tid,p.getId());
+			}
+		}
 	}
 
 	/**
@@ -440,12 +399,12 @@ public class BufferPool {
 	 * NB: Be careful using this routine -- it writes dirty data to disk so will
 	 * break simpledb if running in NO STEAL mode.
 	 */
-	public synchronized void flushAllPages() throws IOException {
+	public void flushAllPages() throws IOException {
+		ArrayList<PageId> pids;
 		synchronized (this) {
-			for(int i=0;i<cache.size();i++) { 
-				flushPage(cache.get(i).getId());
-			}
+			pids = new ArrayList<PageId>(cache.keySet());
 		}
+		flushPages(pids);
 	}
 
 	/**
@@ -455,49 +414,161 @@ public class BufferPool {
 	 * cache.
 	 */
 	public synchronized void discardPage(PageId pid) {
-		Page remove;
-		for(Page p: cache) {
-			if(p.getId().equals(pid)) {
-				remove = p;
-				cache.remove(remove);
-				break;
+		cache.remove(pid);
+		recLsns.remove(pid);
+		staleReadAhead(pid);
+	}
+
+	/**
+	 * Flushes the dirty pages among pids to disk: their update records are
+	 * appended holding the BufferPool lock, the log is forced once without
+	 * it, so that the force is shared with concurrent committers, and then
+	 * the pages are written, each holding the lock just for that page. A
+	 * page changed again meanwhile is not written and stays dirty, since
+	 * its new contents are not logged yet.
+	 */
+	private void flushPages(Collection<PageId> pids) throws IOException {
+		ArrayList<Page> logged = new ArrayList<Page>();
+		ArrayList<Long> versions = new ArrayList<Long>();
+		long end;
+		synchronized (this) {
+			for(PageId pid : pids) {
+				Page p = cache.get(pid);
+				// append an update record to the log, with 
+				// a before-image and after-image.
+				TransactionId dirtier = p == null ? null : p.isDirty();
+				if(dirtier != null) {
+					//The page's transaction may be changing it meanwhile; note the version logged
+					synchronized (p) {
+						Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+						versions.add(p.getVersion());
+					}
+					logged.add(p);
+				}
+			}
+			end = Database.getLogFile().getEndLsn();
+		}
+		if(logged.isEmpty()) {
+			return;
+		}
+		Database.getLogFile().forceTo(end);
+		for(int i = 0; i < logged.size(); i++) {
+			Page p = logged.get(i);
+			synchronized (this) {
+				if(stopWriting) {
+					return;
+				}
+				synchronized (p) {
+					//unless someone flushed or discarded it, or it changed since
+					if(p.isDirty() == null || cache.get(p.getId()) != p
+							|| p.getVersion() != versions.get(i)) {
+						continue;
+					}
+					Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+					staleReadAhead(p.getId());
+				}
+				p.markDirty(false, null);
+				recLsns.remove(p.getId());
 			}
 		}
 	}
 
 	/**
-	 * Flushes a certain page to disk
-	 *
-	 * @param pid an ID indicating the page to flush
+	 * Write all pages of the specified transaction to disk.
 	 */
-	private synchronized void flushPage(PageId pid) throws IOException {
-		Page p = Database.getBufferPool().find(pid);
-		// append an update record to the log, with 
-		// a before-image and after-image.
-		TransactionId dirtier = p.isDirty();
-		if (dirtier != null){
-			Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-			Database.getLogFile().force();
-			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-			file.writePage(p);
-			p.markDirty(false, null);
-		}	
+	public void flushPages(TransactionId tid) throws IOException {
+		ArrayList<Page> logged = new ArrayList<Page>();
+		long end;
+		synchronized (this) {
+			for(PageId pid : takeDirtied(tid)) {
+				Page pg = cache.get(pid);
+				if(pg != null && pg.isDirty() != null && pg.isDirty().equals(tid)) {
+					Database.getLogFile().logWrite(tid, pg.getBeforeImage(), pg);
+					logged.add(pg);
+				}
+			}
+			end = Database.getLogFile().getEndLsn();
+		}
+		if(logged.isEmpty())
+			return;
+		//The update records must be durable before the pages are written; forcing
+		//outside the monitor lets concurrent committers share one force
+		Database.getLogFile().forceTo(end);
+		synchronized (this) {
+			for(Page pg : logged) {
+				//unless someone flushed it meanwhile
+				if(pg.isDirty() != null && pg.isDirty().equals(tid)) {
+					Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
+					staleReadAhead(pg.getId());
+					pg.markDirty(false, null);
+					recLsns.remove(pg.getId());
+				}
+				releasePage(tid,pg.getId());
+			}
+		}
+	}
 
+	/**
+	 * @return a copy of the dirty page table: the recovery LSN of each page
+	 * changed since it was last written, a point in the log before any
+	 * record of those changes
+	 */
+	public synchronized HashMap<PageId,Long> getDirtyPageTable() {
+		return new HashMap<PageId,Long>(recLsns);
 	}
 
 	/**
-	 * Write all pages of the specified transaction to disk.
+	 * Starts writing the pages that are dirty now to disk in the background,
+	 * for a fuzzy checkpoint: the pages are logged together holding the
+	 * BufferPool lock, the log is forced once without it, and each page is
+	 * then written holding the lock just for that page, so transactions
+	 * keep running.
+	 * Pages written leave the dirty page table, which moves the point
+	 * the next checkpoint has recovery redo from forward. If the previous
+	 * pass is still running, it is returned instead.
+	 *
+	 * @return the pass, which can be waited for
 	 */
-	public synchronized void flushPages(TransactionId tid) throws IOException {
-		HashSet<Page> toRemove = new HashSet<Page>();
-		for(Page pg: cache)   {	
-			if(pg.isDirty() != null && pg.isDirty().equals(tid)) {
-				toRemove.add(pg);
+	public synchronized Future<?> flushPagesInBackground() {
+		if(writing != null && !writing.isDone()) {
+			return writing;
+		}
+		final ArrayList<PageId> pids = new ArrayList<PageId>(recLsns.keySet());
+		writing = writer.submit(new Runnable() {
+			public void run() {
+				if(stopWriting) {
+					return;
+				}
+				try {
+					flushPages(pids);
+				} catch (IOException e) {
+					//the pages stay dirty; the next checkpoint tries again
+				}
 			}
+		});
+		return writing;
+	}
+
+	/**
+	 * Stops the background writer after the page it is writing, and waits
+	 * for it; no page is written by this pool afterwards. Used by
+	 * Database.reset, which stands for a crash.
+	 */
+	void stopWriting() {
+		stopWriting = true;
+		Future<?> pass;
+		synchronized (this) {
+			pass = writing;
+		}
+		if(pass == null) {
+			return;
 		}
-		for(Page pg: toRemove) {
-			flushPage(pg.getId());
-			releasePage(tid,pg.getId());
+		try {
+			pass.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			//nothing more will be written
 		}
 	}
 
@@ -506,12 +577,13 @@ public class BufferPool {
 	 * Flushes the page to disk to ensure dirty pages are updated on disk.
 	 */
 	private synchronized void evictPage() throws DbException {
-		Iterator<Page> descend = cache.descendingIterator(); //LRU implementation
+		Iterator<Page> lru = cache.values().iterator(); //LRU implementation, eldest first
 
-		while(descend.hasNext()) {
-			Page pg = descend.next();
+		while(lru.hasNext()) {
+			Page pg = lru.next();
 			if(pg.isDirty()==null) {
-				cache.remove(pg);
+				lru.remove();
+				staleReadAhead(pg.getId());
 				return;
 			} 
 		}
@@ -136,6 +136,8 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Tables are memory-mapped MappedHeapFiles if the system property
+     * simpledb.MappedFiles is true, plain HeapFiles otherwise.
      *
      * @param catalogFile
      */
@@ -177,7 +179,9 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tabFile = new File(baseFolder + "/" + name + ".dat");
+                HeapFile tabHf = Boolean.getBoolean("simpledb.MappedFiles") ?
+                        new MappedHeapFile(tabFile, t) : new HeapFile(tabFile, t);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t + (primaryKey.equals("")? "":(" key is " + primaryKey)));
             }
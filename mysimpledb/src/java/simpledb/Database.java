@@ -81,6 +81,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.stopWriting();
+        _instance.get()._logfile.stopTruncating();
         _instance.set(new Database());
     }
 
@@ -15,6 +15,14 @@ public interface Field extends Serializable {
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the same bytes as serialize(DataOutputStream) to the specified
+     * buffer, starting at its position.
+     *
+     * @param buf The buffer to write to.
+     */
+    void serialize(java.nio.ByteBuffer buf);
+
     /**
      * Compare the value of this field object to the passed in value.
      *
@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so that inserts can go straight to such a page instead of locking
+ * and reading every page from the start of the file.
+ * <p/>
+ * The map is only a hint. It is built from the page headers on disk the
+ * first time it is consulted, and then kept up to date by inserts and
+ * deletes. A page it claims has room may have been filled since (e.g. by a
+ * transaction that has not committed yet when the map was built, or a
+ * delete that was rolled back), so callers must check the page itself and
+ * call {@link #markFull} when it is stale. Space freed by a rollback of an
+ * insert is only noticed again when the map is rebuilt on restart.
+ */
+class FreeSpaceMap {
+    private final BitSet hasRoom = new BitSet();
+    private boolean built = false;
+
+    /**
+     * Returns a page that is believed to have an empty slot, building the
+     * map from the file first if needed.
+     *
+     * @param file the heap file this map belongs to
+     * @param from the lowest page number to consider
+     * @return a page number, or -1 if every page is believed to be full
+     */
+    synchronized int findPage(HeapFile file, int from) throws IOException {
+        if (!built) {
+            build(file);
+        }
+        return hasRoom.nextSetBit(from);
+    }
+
+    synchronized void markFree(int pgNo) {
+        hasRoom.set(pgNo);
+    }
+
+    synchronized void markFull(int pgNo) {
+        hasRoom.clear(pgNo);
+    }
+
+    /**
+     * Reads only the header of every page, without going through the buffer
+     * pool or taking locks. Pages freed by deletes before the build stay
+     * marked.
+     */
+    private void build(HeapFile file) throws IOException {
+        int slots = HeapPage.slotsPerPage(file.getTupleDesc());
+        ByteBuffer header = ByteBuffer.allocate(HeapPage.headerSize(slots));
+        FileChannel ch = file.channel();
+        int pages = file.numPages();
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            header.clear();
+            long offset = (long) BufferPool.PAGE_SIZE * pgNo;
+            while (header.hasRemaining()) {
+                if (ch.read(header, offset + header.position()) < 0)
+                    break;
+            }
+            int used = 0;
+            for (int i = 0; i < header.position(); i++) {
+                used += Integer.bitCount(header.get(i) & 0xff);
+            }
+            if (used < slots) {
+                hasRoom.set(pgNo);
+            }
+        }
+        built = true;
+    }
+}
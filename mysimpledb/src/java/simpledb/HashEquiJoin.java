@@ -1,14 +1,80 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates. The right (inner) child is read once into an
+ * in-memory hash table keyed on its join field; the left (outer) child is
+ * then scanned and each of its tuples probes the table. Output comes in the
+ * same order as from the nested-loops {@link Join}: outer order, and for
+ * each outer tuple its matches in inner order.
+ * <p/>
+ * If the inner child does not fit in the memory budget, the join becomes a
+ * Grace hash join: both children are hash-partitioned into temporary files
+ * and joined one partition pair at a time. A build partition that is still
+ * too large is partitioned again on other bits of the hash; one that cannot
+ * be split (a single heavy key) is read in budget-sized chunks, scanning its
+ * probe partition once per chunk. Output order is then by partition.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default memory budget for the hash table, in bytes. Can be overridden
+     * with the simpledb.HashJoinMemory system property.
+     */
+    public static final long DEFAULT_MEMORY = 64L << 20;
+
+    //Partitions per pass; each pass uses the next LEVEL_BITS of the hash
+    static final int FANOUT = 16;
+    private static final int LEVEL_BITS = 4;
+    static final int MAX_LEVEL = 32 / LEVEL_BITS;
+    //Rough heap cost of a tuple in the table beyond its serialized size
+    private static final int TUPLE_OVERHEAD = 64;
+
+    private JoinPredicate p;
+    private DbIterator[] children;
+    private final long memory;
+
+    //Inner tuples by join field; built in open, kept across rewinds
+    private transient HashMap<Field, ArrayList<Tuple>> table = null;
+    private transient TupleDesc td = null;
+    //The outer tuple being probed
+    private transient Tuple t1 = null;
+
+    //Once spilled: the first-pass partitions, kept until close for rewind,
+    //the partitions still to join, and the one being joined
+    private transient ArrayList<Partition> partitions = null;
+    private transient LinkedList<Partition> pending = null;
+    private transient Partition current = null;
+    private transient SpillFile.Reader buildIn = null;
+    private transient SpillFile.Reader probeIn = null;
+    //Number of partition pairs written, including repartitioning
+    transient int partitionsWritten = 0;
+
+    //A pair of matching build and probe partitions
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        int level;
+        final boolean firstPass;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+            this.firstPass = level == 0;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -18,40 +84,287 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        throw new UnsupportedOperationException();
+        this(p, child1, child2, Long.getLong("simpledb.HashJoinMemory", DEFAULT_MEMORY));
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memory bytes the hash table may use before the join spills
+     *               its inputs to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memory) {
+        this.p = p;
+        children = new DbIterator[2];
+        this.children[0] = child1;
+        this.children[1] = child2;
+        this.memory = memory;
     }
 
     public JoinPredicate getJoinPredicate() {
-        // some code goes here
-        return null;
+        return p;
     }
 
+    /**
+     * @see simpledb.TupleDesc#merge(TupleDesc, TupleDesc)
+     */
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        return TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
     }
 
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField1Name() {
-        // some code goes here
-        return null;
+        return children[0].getTupleDesc().getFieldName(p.getField1());
     }
 
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField2Name() {
-        // some code goes here
-        return null;
+        return children[1].getTupleDesc().getFieldName(p.getField2());
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
+        super.open();
+        children[0].open();
+        children[1].open();
+        td = getTupleDesc();
+        build();
+        t1 = null;
+        listIt = null;
     }
 
     public void close() {
-        // some code goes here
+        super.close();
+        children[0].close();
+        children[1].close();
+        dropPartitions();
+        if (partitions != null) {
+            for (Partition part : partitions) {
+                part.delete();
+            }
+            partitions = null;
+        }
+        table = null;
+        t1 = null;
+        listIt = null;
     }
 
+    /**
+     * Only the outer child is rewound; the hash table already holds the
+     * whole inner relation. Once spilled, the join starts over from the
+     * first-pass partitions.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        if (partitions != null) {
+            dropPartitions();
+            pending = new LinkedList<Partition>(partitions);
+            table = null;
+        } else {
+            children[0].rewind();
+        }
+        t1 = null;
+        listIt = null;
+    }
+
+    // Closes the readers and deletes partitions made after the first pass
+    private void dropPartitions() {
+        if (buildIn != null) {
+            buildIn.close();
+            buildIn = null;
+        }
+        if (probeIn != null) {
+            probeIn.close();
+            probeIn = null;
+        }
+        if (current != null && !current.firstPass)
+            current.delete();
+        current = null;
+        if (pending != null) {
+            for (Partition part : pending) {
+                if (!part.firstPass)
+                    part.delete();
+            }
+            pending = null;
+        }
+    }
+
+    private long tupleMemory() {
+        return children[1].getTupleDesc().getSize() + TUPLE_OVERHEAD;
+    }
+
+    // Reads the inner child into the hash table, or partitions both
+    // children if it does not fit
+    private void build() throws DbException, TransactionAbortedException {
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        long used = 0;
+        while (children[1].hasNext()) {
+            if (used + tupleMemory() > memory) {
+                spill();
+                return;
+            }
+            put(children[1].next());
+            used += tupleMemory();
+        }
+    }
+
+    private void put(Tuple t) {
+        Field key = t.getField(p.getField2());
+        ArrayList<Tuple> matches = table.get(key);
+        if (matches == null) {
+            matches = new ArrayList<Tuple>(1);
+            table.put(key, matches);
+        }
+        matches.add(t);
+    }
+
+    // First pass: partitions the table built so far, the rest of the inner
+    // child and the whole outer child
+    private void spill() throws DbException, TransactionAbortedException {
+        try {
+            SpillFile[] build = spillFiles(children[1].getTupleDesc());
+            for (ArrayList<Tuple> matches : table.values()) {
+                for (Tuple t : matches) {
+                    build[partition(t.getField(p.getField2()), 0)].add(t);
+                }
+            }
+            table = null;
+            while (children[1].hasNext()) {
+                Tuple t = children[1].next();
+                build[partition(t.getField(p.getField2()), 0)].add(t);
+            }
+            SpillFile[] probe = spillFiles(children[0].getTupleDesc());
+            while (children[0].hasNext()) {
+                Tuple t = children[0].next();
+                probe[partition(t.getField(p.getField1()), 0)].add(t);
+            }
+            partitions = pairs(build, probe, 0);
+            pending = new LinkedList<Partition>(partitions);
+        } catch (IOException e) {
+            throw new DbException("HashEquiJoin: could not spill partitions: " + e);
+        }
+    }
+
+    private static SpillFile[] spillFiles(TupleDesc td) throws IOException {
+        SpillFile[] files = new SpillFile[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            files[i] = new SpillFile(td);
+        }
+        return files;
+    }
+
+    // Pairs up partitions; a pair with an empty side produces nothing
+    private ArrayList<Partition> pairs(SpillFile[] build, SpillFile[] probe, int level) {
+        ArrayList<Partition> ret = new ArrayList<Partition>();
+        for (int i = 0; i < FANOUT; i++) {
+            if (build[i].size() == 0 || probe[i].size() == 0) {
+                build[i].delete();
+                probe[i].delete();
+            } else {
+                ret.add(new Partition(build[i], probe[i], level));
+                partitionsWritten++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the partition of key at the given pass; every pass uses
+     * different bits of the (mixed) hash code
+     */
+    static int partition(Field key, int level) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h >>> (level * LEVEL_BITS)) & (FANOUT - 1);
+    }
+
+    // Returns the next partition that is small enough to join, or cannot
+    // be split any further, repartitioning the others
+    private Partition nextPartition() throws IOException {
+        while (!pending.isEmpty()) {
+            Partition part = pending.removeFirst();
+            if (part.build.size() * tupleMemory() <= memory || part.level + 1 >= MAX_LEVEL)
+                return part;
+
+            int level = part.level + 1;
+            SpillFile[] build = spillFiles(part.build.getTupleDesc());
+            SpillFile.Reader in = part.build.reader();
+            while (in.hasNext()) {
+                Tuple t = in.next();
+                build[partition(t.getField(p.getField2()), level)].add(t);
+            }
+            in.close();
+            SpillFile[] probe = spillFiles(part.probe.getTupleDesc());
+            in = part.probe.reader();
+            while (in.hasNext()) {
+                Tuple t = in.next();
+                probe[partition(t.getField(p.getField1()), level)].add(t);
+            }
+            in.close();
+            ArrayList<Partition> split = pairs(build, probe, level);
+            for (int i = split.size() - 1; i >= 0; i--) {
+                // no bits of the hash tell its keys apart; don't try again
+                if (split.get(i).build.size() == part.build.size())
+                    split.get(i).level = MAX_LEVEL;
+                pending.addFirst(split.get(i));
+            }
+            if (!part.firstPass)
+                part.delete();
+        }
+        return null;
+    }
+
+    // Loads the next chunk of build tuples into the table and starts a scan
+    // of the matching probe partition; false when all partitions are done
+    private boolean nextChunk() throws IOException {
+        if (probeIn != null) {
+            probeIn.close();
+            probeIn = null;
+        }
+        if (buildIn == null || !buildIn.hasNext()) {
+            if (buildIn != null) {
+                buildIn.close();
+                buildIn = null;
+            }
+            if (current != null && !current.firstPass)
+                current.delete();
+            current = nextPartition();
+            if (current == null)
+                return false;
+            buildIn = current.build.reader();
+        }
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        long used = 0;
+        while (buildIn.hasNext() && (used == 0 || used + tupleMemory() <= memory)) {
+            put(buildIn.next());
+            used += tupleMemory();
+        }
+        probeIn = current.probe.reader();
+        return true;
+    }
+
+    // The next outer tuple to probe with, or null when there are no more
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (pending == null)
+            return children[0].hasNext() ? children[0].next() : null;
+        try {
+            while (probeIn == null || !probeIn.hasNext()) {
+                if (!nextChunk())
+                    return null;
+            }
+            return probeIn.next();
+        } catch (IOException e) {
+            throw new DbException("HashEquiJoin: could not read partitions: " + e);
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -59,8 +372,7 @@ public class HashEquiJoin extends Operator {
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
      * <p/>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -75,19 +387,36 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        while (listIt == null || !listIt.hasNext()) {
+            t1 = nextProbe();
+            if (t1 == null)
+                return null;
+            ArrayList<Tuple> matches = table.get(t1.getField(p.getField1()));
+            listIt = matches == null ? null : matches.iterator();
+        }
+        return merge(t1, listIt.next());
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple ret = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            ret.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            ret.setField(i + n1, t2.getField(i));
+        }
+        return ret;
     }
 
     @Override
     public DbIterator[] getChildren() {
-        // some code goes here
-        return null;
+        return children;
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
-        // some code goes here
+        this.children = children;
     }
 
 }
@@ -1,11 +1,10 @@
 package simpledb;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -23,6 +22,16 @@ import java.util.NoSuchElementException;
 public class HeapFile implements DbFile {
 	private File file;
 	private TupleDesc td;
+	//Long-lived handle for positional page I/O, see channel()
+	private FileChannel channel;
+	//Per-thread page buffer for writePage; direct, so the channel writes it without another copy
+	private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BufferPool.getPageSize());
+		}
+	};
+	//Pages with empty slots, so inserts need not scan the file
+	private final FreeSpaceMap freeSpace = new FreeSpaceMap();
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -65,33 +74,34 @@ public class HeapFile implements DbFile {
     	return td;
     }
 
+    /**
+     * Returns the channel every page of this file is read and written
+     * through, opening it on first use. A channel is closed for everybody
+     * when a thread blocked on it is interrupted, so a closed channel is
+     * simply reopened.
+     */
+    synchronized FileChannel channel() throws IOException {
+    	if (channel == null || !channel.isOpen()) {
+    		channel = new RandomAccessFile(file, "rw").getChannel();
+    	}
+    	return channel;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-    	byte[] data;
-    	BufferedInputStream in;
+    	byte[] data = new byte[BufferPool.PAGE_SIZE];
+    	ByteBuffer buf = ByteBuffer.wrap(data);
+    	long offset = (long)BufferPool.PAGE_SIZE*pid.pageNumber();
     	try {
-			in = new BufferedInputStream(new FileInputStream(file),BufferPool.PAGE_SIZE);
-			//System.out.println("About to read: "+pid.pageNumber());
-			in.skip(BufferPool.PAGE_SIZE*(pid.pageNumber()));
-			int bytesRead = 0;
-			data = new byte[BufferPool.PAGE_SIZE];
-			while (bytesRead < BufferPool.PAGE_SIZE) {
-				data[bytesRead]=(byte)in.read();
-				bytesRead++;
-			}
-			in.close();
-			
-    	} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
-		}        
-    	try {
-			return new HeapPage((HeapPageId) pid,data);
+    		FileChannel ch = channel();
+    		//A positional read may return fewer bytes; past the end of file the page stays zeroed
+    		while (buf.hasRemaining()) {
+    			int n = ch.read(buf, offset + buf.position());
+    			if (n < 0) {
+    				break;
+    			}
+    		}
+    		return new HeapPage((HeapPageId) pid,data);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -101,13 +111,15 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-    	RandomAccessFile out = new RandomAccessFile(this.file,"rw");
-    	byte data[] = page.getPageData();
-    	//System.out.println("Writing page no: " + page.getId().pageNumber());
-    	
-    	out.seek(page.getId().pageNumber()*BufferPool.PAGE_SIZE);
-    	out.write(data);	
-    	out.close();	
+    	ByteBuffer buf = WRITE_BUFFER.get();
+    	buf.clear();
+    	page.getPageData(buf);
+    	buf.flip();
+    	long offset = (long)BufferPool.PAGE_SIZE*page.getId().pageNumber();
+    	FileChannel ch = channel();
+    	while (buf.hasRemaining()) {
+    		ch.write(buf, offset + buf.position());
+    	}
     }
 
     /**
@@ -121,40 +133,64 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+    	BufferPool bp = Database.getBufferPool();
     	HeapPage pg = null;
-    	boolean isAdded = false;
-    	
-    	for (int i=0;i<this.numPages();i++) {
-    		pg = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(),i), Permissions.READ_WRITE);
+
+    	//Only visit pages the free-space map says have room
+    	int pgNo = freeSpace.findPage(this, 0);
+    	while (pgNo != -1) {
+    		HeapPageId pid = new HeapPageId(this.getId(),pgNo);
+    		boolean locked = bp.holdsLock(tid, pid);
+    		pg = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
     		if(pg.getNumEmptySlots() > 0) {
-    			isAdded = true;
     			break;
     		}
+    		//Stale hint; let other transactions at the page again unless we held it before
+    		freeSpace.markFull(pgNo);
+    		if(!locked) {
+    			bp.releasePage(tid, pid);
+    		}
+    		pg = null;
+    		pgNo = freeSpace.findPage(this, pgNo+1);
     	}
-    	
+
     	//New Page needed
-    	if(!isAdded) {
-    		pg = new HeapPage(new HeapPageId(this.getId(),numPages()),HeapPage.createEmptyPageData());
-    		pg.insertTuple(t);
-    		this.writePage(pg);
+    	if(pg == null) {
+    		pgNo = appendEmptyPage();
+    		pg = (HeapPage)bp.getPage(tid, new HeapPageId(this.getId(),pgNo), Permissions.READ_WRITE);
     	}
-    	
+
 		pg.insertTuple(t);
-		//this.writePage(pg);
-		//pg.markDirty(true, tid);
-		//System.out.println("Marked " + pg + " dirty");
+		if(pg.getNumEmptySlots() == 0) {
+			freeSpace.markFull(pgNo);
+		} else {
+			freeSpace.markFree(pgNo);
+		}
 
     	ArrayList<Page> ret = new ArrayList<Page>();
     	ret.add(pg);
     	return ret;
     }
 
+    /**
+     * Writes an empty page at the end of the file, so that it can be locked
+     * and fetched through the BufferPool like any other page.
+     *
+     * @return the page number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+    	int pgNo = numPages();
+    	writePage(new HeapPage(new HeapPageId(this.getId(),pgNo),HeapPage.createEmptyPageData()));
+    	return pgNo;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {    	
     	HeapPage pg = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
     	
     	pg.deleteTuple(t);
+    	freeSpace.markFree(pg.getId().pageNumber());
     	
     	ArrayList<Page> arr = new ArrayList<Page>();
     	arr.add(pg);
@@ -170,6 +206,8 @@ public class HeapFile implements DbFile {
     		HeapPage curPage;
     		Iterator<Tuple> tuples;
     		int pageNum = -1;
+    		//Highest page read-ahead has been requested for
+    		int aheadUpTo = -1;
     		
     		public HeapFileIterator(HeapFile heapfile,TransactionId tid) {
     			this.heapfile = heapfile;
@@ -185,6 +223,8 @@ public class HeapFile implements DbFile {
 					//System.out.println("acquired lock");
 					tuples = curPage.iterator();
 					pageNum=0;
+					aheadUpTo=0;
+					readAhead();
 				}
 			}
 
@@ -201,6 +241,7 @@ public class HeapFile implements DbFile {
 						pageNum++;
 						curPage = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(heapfile.getId(),pageNum), Permissions.READ_ONLY);
 						tuples = curPage.iterator();
+						readAhead();
 						if(tuples.hasNext())
 							return true;
 					}
@@ -247,11 +288,27 @@ public class HeapFile implements DbFile {
 					pageNum = 0;
 					curPage = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(heapfile.getId(),pageNum), Permissions.READ_ONLY);
 					tuples = curPage.iterator();
+					aheadUpTo = 0;
+					readAhead();
 				} else {
 					throw new NoSuchElementException("HeapFileIterator Error: Iterator has not been opened.");
 				}
 			}
 
+			/**
+			 * Tells the BufferPool which pages the scan will want next, so
+			 * they are read in the background while this one is consumed.
+			 * Each page is only asked for once per pass.
+			 */
+			private void readAhead() {
+				BufferPool bp = Database.getBufferPool();
+				int last = Math.min(pageNum + bp.getReadAhead(), heapfile.numPages()-1);
+				for (int p = Math.max(aheadUpTo, pageNum)+1; p <= last; p++) {
+					bp.readAhead(new HeapPageId(heapfile.getId(),p));
+				}
+				aheadUpTo = Math.max(aheadUpTo, last);
+			}
+
 			@Override
 			public void close() {
 				//TODO There is a chance this may cause problems, prolly not though
@@ -2,10 +2,15 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p/>
+ * Changes to the page and its serialization synchronize on the page, so
+ * that BufferPool can log and write a page another transaction is
+ * changing, e.g. in a checkpoint, and write what it logged.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,10 +21,17 @@ public class HeapPage implements Page {
     final TupleDesc td;
     final byte header[];
     final Tuple tuples[];
+    //The page as read; tuples not created yet are decoded from here. Never modified
+    private final byte[] data;
     final int numSlots;
 
+    //Before-image bytes; null while the page is unchanged since its last commit
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    //Bytes as of the last delta logged; null while that is the before-image
+    private byte[] loggedData;
+    
+    //Incremented by every change to the contents
+    private long version = 0;
     
     private boolean dirty = false;
     private TransactionId soiler = null;
@@ -37,6 +49,9 @@ public class HeapPage implements Page {
      * ceiling(no. tuple slots / 8)
      * <p/>
      *
+     * The page decodes tuples out of data on demand, so data must not be
+     * modified afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -45,24 +60,17 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize())
+            throw new IOException("HeapPage: page data is too short");
 
-        // allocate and read the header slots of this page
+        // the header is read now; tuples are decoded from data when first used
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
+        System.arraycopy(data, 0, header, 0, header.length);
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data = data;
 
-        setBeforeImage();
+        // until the page is changed, the bytes it was read from are its before-image
+        oldData = data;
     }
 
     /**
@@ -71,9 +79,28 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
-    	int size = td.getSize();
+    	return slotsPerPage(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with schema td
+     */
+    static int slotsPerPage(TupleDesc td) {
+    	return slotsPerPage(td.getSize());
+    }
+
+    /**
+     * @return the number of tuple slots on a page of tuples of size bytes
+     */
+    static int slotsPerPage(int size) {
     	return (int) Math.floor((BufferPool.PAGE_SIZE*8)/(size*8.0+1));
+    }
 
+    /**
+     * @return the number of header bytes on a page with the given number of slots
+     */
+    static int headerSize(int slots) {
+    	return (int)Math.ceil(slots/8.0);
     }
 
     /**
@@ -82,7 +109,25 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-    	return (int)Math.ceil(getNumTuples()/8.0);
+    	return headerSize(getNumTuples());
+    }
+
+    /**
+     * Create a HeapPage from the remaining bytes of a buffer, e.g. a page
+     * slice of a memory-mapped file. They are copied out in one bulk get:
+     * tuples are decoded from them lazily, so they must not change when
+     * the file is written later.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copy(data));
+    }
+
+    private static byte[] copy(ByteBuffer data) {
+        byte[] b = new byte[data.remaining()];
+        data.get(b);
+        return b;
     }
 
     /**
@@ -92,9 +137,11 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage() {
         try {
             byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
+            synchronized (this) {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null)
+                oldDataRef = getPageData();
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -104,53 +151,75 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Makes the current contents the before-image. Nothing is copied now;
+     * the image is captured the next time the page is changed.
+     */
     public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+        synchronized (this) {
+            oldData = null;
+            loggedData = null;
         }
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Returns the slots changed since the last delta was taken or, if none
+     * was since the before-image was set, since before, and makes the
+     * current contents the base of the next delta. Each update record
+     * thus holds the changes since the previous one, so redoing them in
+     * log order gives the contents last logged.
+     *
+     * @param before the before-image
+     * @see LogFile#logWrite
      */
-    public HeapPageId getId() {
-        return pid;
+    HeapPageDelta takeDelta(Page before) {
+        byte[] current;
+        byte[] base;
+        synchronized (this) {
+            current = getPageData();
+            base = loggedData != null ? loggedData : before.getPageData();
+            loggedData = current;
+        }
+        return HeapPageDelta.diff(pid, td.getSize(), base, current);
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Called before the page is changed: if its before-image is still the
+     * current contents, serialize them now (copy-on-write).
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private void captureBeforeImage() {
+        synchronized (this) {
+            if (oldData == null)
+                oldData = getPageData();
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
 
+    /**
+     * Returns the tuple that was in a slot as read, for a scan that saw the
+     * slot used and its tuple not created yet. While the slot is unchanged
+     * the tuple is created once and kept; once it was deleted (or replaced)
+     * the scan gets a tuple of its own. Fields are decoded from the page
+     * data only when they are read.
+     */
+    private synchronized Tuple tuple(int slotId) {
+        Tuple t = new Tuple(td, data, slotOffset(slotId));
+        t.setRecordId(new RecordId(pid, slotId));
+        if (tuples[slotId] == null && isSlotUsed(slotId))
+            tuples[slotId] = t;
         return t;
     }
 
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -163,64 +232,51 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] out = new byte[BufferPool.getPageSize()];
+        getPageData(ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Writes the bytes of {@link #getPageData()} into buf, starting at its
+     * position, without allocating anything.
+     *
+     * @param buf a buffer with at least BufferPool.getPageSize() bytes remaining
+     */
+    public synchronized void getPageData(ByteBuffer buf) {
+        int tupleSize = td.getSize();
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        buf.put(header);
 
         // create the tuples
         for (int i = 0; i < tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                putZeros(buf, tupleSize);
+                continue;
+            }
+
+            // non-empty slot that was never touched: copy its bytes as read
+            if (tuples[i] == null) {
+                buf.put(data, slotOffset(i), tupleSize);
                 continue;
             }
 
             // non-empty slot
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                tuples[i].getField(j).serialize(buf);
             }
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        putZeros(buf, BufferPool.getPageSize() - (header.length + tupleSize * tuples.length));
+    }
 
-        return baos.toByteArray();
+    private static void putZeros(ByteBuffer buf, int n) {
+        while (n-- > 0)
+            buf.put((byte) 0);
     }
 
     /**
@@ -245,17 +301,19 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
-        for(int i=0;i<numSlots;i++) {
-        	if(isSlotUsed(i)) {
-        		if(t.equals(tuples[i])) {
-        			tuples[i]=null;
-        			markSlotUsed(i,false);
-        			return;
-        		}
-        	}
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if(rid == null || !pid.equals(rid.getPageId())) {
+        	throw new DbException("HeapPage: Tuple could not be found on this page.");
+        }
+        int i = rid.tupleno();
+        if(i < 0 || i >= numSlots || !isSlotUsed(i)) {
+        	throw new DbException("HeapPage: Tuple slot is already empty.");
         }
-        throw new DbException("HeapPage: Tuple could not be found on this page.");
+        captureBeforeImage();
+        tuples[i]=null;
+        markSlotUsed(i,false);
+        version++;
     }
 
     /**
@@ -266,12 +324,14 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
     	for (int i=0;i<numSlots;i++) {
     		if(!isSlotUsed(i)) {
+    			captureBeforeImage();
     			markSlotUsed(i,true);
     			t.setRecordId(new RecordId(this.pid, i));
     			tuples[i] = t;
+    			version++;
     			//System.out.println("ACTUAL PAGE:"+pid);
     			return;
     		}
@@ -279,11 +339,18 @@ public class HeapPage implements Page {
     	throw new DbException("HeapPage Error: Page is full");
     }
 
+    public synchronized long getVersion() {
+        return version;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
+    	if(dirty) {
+    		captureBeforeImage();
+    	}
     	this.dirty = dirty;
         if(dirty) {
         	this.soiler = tid;
@@ -350,14 +417,43 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p/>
+     * The iterator returns the tuples on the page when it was created;
+     * later inserts and deletes do not show up in it. Tuples not created
+     * by then are still decoded lazily.
      */
     public Iterator<Tuple> iterator() {
-    	LinkedList<Tuple> list = new LinkedList<Tuple>();
-    	for(int i=0;i<numSlots;i++) {
-    		if (isSlotUsed(i))
-    			list.add(tuples[i]);
+    	final byte[] used;
+    	final Tuple[] created;
+    	synchronized (this) {
+    		used = header.clone();
+    		created = tuples.clone();
     	}
-    	return list.iterator();
+    	return new Iterator<Tuple>() {
+    		//Next used slot, or numSlots when there is none
+    		private int next = advance(0);
+
+    		private int advance(int from) {
+    			while (from < numSlots && (used[from/8] & (1<<(from%8))) == 0)
+    				from++;
+    			return from;
+    		}
+
+    		public boolean hasNext() {
+    			return next < numSlots;
+    		}
+
+    		public Tuple next() {
+    			if (next >= numSlots)
+    				throw new NoSuchElementException();
+    			Tuple t = created[next] != null ? created[next] : tuple(next);
+    			next = advance(next + 1);
+    			return t;
+    		}
+
+    		public void remove() {
+    			throw new UnsupportedOperationException("HeapPage: tuples cannot be removed through the iterator");
+    		}
+    	};
     }
 }
-
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The tuple slots of one HeapPage changed by an update, logged instead of
+ * full page images. Each change inserts, deletes or updates one slot and
+ * carries the slot bytes needed to redo and to undo it; redoing or undoing
+ * sets the slot's header bit and bytes, so it can be applied any number of
+ * times, to any version of the page.
+ */
+class HeapPageDelta {
+    static final int INSERT_SLOT = 1;
+    static final int DELETE_SLOT = 2;
+    static final int UPDATE_SLOT = 3;
+
+    private final HeapPageId pid;
+    private final int tupleSize;
+    private final ArrayList<Change> changes = new ArrayList<Change>();
+
+    //A changed slot; before is null for an insert, after for a delete
+    private static class Change {
+        final int slot;
+        final byte[] before;
+        final byte[] after;
+
+        Change(int slot, byte[] before, byte[] after) {
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
+        }
+
+        int kind() {
+            return before == null ? INSERT_SLOT : after == null ? DELETE_SLOT : UPDATE_SLOT;
+        }
+    }
+
+    private HeapPageDelta(HeapPageId pid, int tupleSize) {
+        this.pid = pid;
+        this.tupleSize = tupleSize;
+    }
+
+    /**
+     * @return the slots that differ between base and current, two versions
+     * of page pid in the format of HeapPage.getPageData
+     */
+    static HeapPageDelta diff(HeapPageId pid, int tupleSize, byte[] base, byte[] current) {
+        HeapPageDelta d = new HeapPageDelta(pid, tupleSize);
+        int slots = HeapPage.slotsPerPage(tupleSize);
+        int header = HeapPage.headerSize(slots);
+        for (int i = 0; i < slots; i++) {
+            boolean was = isUsed(base, i);
+            boolean is = isUsed(current, i);
+            int off = header + i * tupleSize;
+            if ((!was && !is) || (was && is && sameBytes(base, current, off, tupleSize)))
+                continue;
+            d.changes.add(new Change(i, was ? copy(base, off, tupleSize) : null,
+                    is ? copy(current, off, tupleSize) : null));
+        }
+        return d;
+    }
+
+    /**
+     * @return the changes that undo this delta, e.g. for a CLR
+     */
+    HeapPageDelta inverse() {
+        HeapPageDelta d = new HeapPageDelta(pid, tupleSize);
+        for (Change c : changes) {
+            d.changes.add(new Change(c.slot, c.after, c.before));
+        }
+        return d;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of changed slots
+     */
+    public int numChanges() {
+        return changes.size();
+    }
+
+    /**
+     * Sets the changed slots of data, the bytes of the page, to their
+     * state after the update (redo) or before it (undo).
+     */
+    void apply(byte[] data, boolean redo) {
+        int header = HeapPage.headerSize(HeapPage.slotsPerPage(tupleSize));
+        for (Change c : changes) {
+            byte[] bytes = redo ? c.after : c.before;
+            int off = header + c.slot * tupleSize;
+            int mask = 1 << (c.slot % 8);
+            if (bytes == null) {
+                data[c.slot / 8] &= ~mask;
+                for (int i = 0; i < tupleSize; i++)
+                    data[off + i] = 0;
+            } else {
+                data[c.slot / 8] |= mask;
+                System.arraycopy(bytes, 0, data, off, tupleSize);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #write} writes
+     */
+    int size() {
+        int n = 4 * LogFile.INT_SIZE;
+        for (Change c : changes) {
+            n += 2 * LogFile.INT_SIZE + (c.kind() == UPDATE_SLOT ? 2 : 1) * tupleSize;
+        }
+        return n;
+    }
+
+    /**
+     * Writes the delta: table id, page number, tuple size, the number of
+     * changes, then for each its kind, its slot, and its before bytes
+     * (unless it inserts) and after bytes (unless it deletes).
+     */
+    void write(ByteBuffer buf) {
+        buf.putInt(pid.getTableId());
+        buf.putInt(pid.pageNumber());
+        buf.putInt(tupleSize);
+        buf.putInt(changes.size());
+        for (Change c : changes) {
+            buf.putInt(c.kind());
+            buf.putInt(c.slot);
+            if (c.before != null)
+                buf.put(c.before);
+            if (c.after != null)
+                buf.put(c.after);
+        }
+    }
+
+    static HeapPageDelta read(DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        HeapPageDelta d = new HeapPageDelta(pid, in.readInt());
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int kind = in.readInt();
+            int slot = in.readInt();
+            byte[] before = kind == INSERT_SLOT ? null : d.readSlot(in);
+            byte[] after = kind == DELETE_SLOT ? null : d.readSlot(in);
+            d.changes.add(new Change(slot, before, after));
+        }
+        return d;
+    }
+
+    private byte[] readSlot(DataInput in) throws IOException {
+        byte[] b = new byte[tupleSize];
+        in.readFully(b);
+        return b;
+    }
+
+    private static boolean isUsed(byte[] data, int slot) {
+        return (data[slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] copy(byte[] data, int off, int len) {
+        byte[] b = new byte[len];
+        System.arraycopy(data, off, b, 0, len);
+        return b;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(pid.toString());
+        for (Change c : changes) {
+            sb.append(c.kind() == INSERT_SLOT ? " +" : c.kind() == DELETE_SLOT ? " -" : " ~").append(c.slot);
+        }
+        return sb.toString();
+    }
+}
@@ -40,7 +40,7 @@ public class HeapPageId implements PageId {
      * @see BufferPool
      */
     public int hashCode() {
-    	return (this.id+"   "+this.pageNum).hashCode();
+    	return 31*this.id + this.pageNum;
     }
 
     /**
@@ -13,8 +13,19 @@ public class IntegerAggregator implements Aggregator {
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
-    // a map of groupVal -> AggregateFields
-    private HashMap<String, AggregateFields> groups;
+
+    //The state of group g is at index g of these arrays; groups are
+    //numbered in order of first appearance
+    private int groups = 0;
+    private int[] min, max, sum, count, sumCount;
+    //The key of each group, in intKeys or stringKeys by the group-by type,
+    //and an open-addressing table of group number + 1 (0 marks an empty
+    //slot) probed linearly
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] table;
+
+    private static final int INITIAL_GROUPS = 16;
 
     /**
      * Aggregate constructor
@@ -32,7 +43,25 @@ public class IntegerAggregator implements Aggregator {
         this.gbfield = gbfield;
         this.afield = afield;
         this.gbfieldtype = gbfieldtype;
-        this.groups = new HashMap<String, AggregateFields>();
+        clear();
+    }
+
+    /**
+     * Drops all groups.
+     */
+    void clear() {
+        groups = 0;
+        min = new int[INITIAL_GROUPS];
+        max = new int[INITIAL_GROUPS];
+        sum = new int[INITIAL_GROUPS];
+        count = new int[INITIAL_GROUPS];
+        sumCount = new int[INITIAL_GROUPS];
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE)
+            intKeys = new int[INITIAL_GROUPS];
+        else if (gbfield != NO_GROUPING)
+            stringKeys = new String[INITIAL_GROUPS];
+        if (gbfield != NO_GROUPING)
+            table = new int[2 * INITIAL_GROUPS];
     }
 
     /**
@@ -42,24 +71,183 @@ public class IntegerAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        String groupVal = "";
-        if (gbfield != NO_GROUPING) {
-            groupVal = tup.getField(gbfield).toString();
-        }
-        AggregateFields agg = groups.get(groupVal);
-        if (agg == null)
-            agg = new AggregateFields(groupVal);
+        int g = groupOf(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
 
+        count[g]++;
+        // a count does not look at the values, which may not be IntFields
+        if (what == Op.COUNT)
+            return;
         int x = ((IntField) tup.getField(afield)).getValue();
-
-        agg.count++;
-        agg.sum += x;
-        agg.min = (x < agg.min ? x : agg.min);
-        agg.max = (x > agg.max ? x : agg.max);
+        sum[g] += x;
+        if (x < min[g])
+            min[g] = x;
+        if (x > max[g])
+            max[g] = x;
         if (what == Op.SC_AVG)
-            agg.sumCount += ((IntField) tup.getField(afield + 1)).getValue();
+            sumCount[g] += ((IntField) tup.getField(afield + 1)).getValue();
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        return groups;
+    }
+
+    /**
+     * @return the schema of {@link #partials}: the group key, unless there
+     * is no grouping, then the min, max, sum, count and sumCount of the
+     * group
+     */
+    TupleDesc partialTupleDesc() {
+        Type[] state = {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+        if (gbfield == NO_GROUPING)
+            return new TupleDesc(state);
+        return TupleDesc.merge(new TupleDesc(new Type[]{gbfieldtype}), new TupleDesc(state));
+    }
+
+    /**
+     * Returns the state of each group as a tuple, e.g. to be written out
+     * and combined later with {@link #mergePartial}. The tuples are created
+     * as the iterator advances.
+     */
+    Iterator<Tuple> partials() {
+        final TupleDesc td = partialTupleDesc();
+        final int n = groups;
+        return new Iterator<Tuple>() {
+            private int g = 0;
+
+            public boolean hasNext() {
+                return g < n;
+            }
+
+            public Tuple next() {
+                if (g >= n)
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(td);
+                int i = 0;
+                if (intKeys != null)
+                    t.setField(i++, new IntField(intKeys[g]));
+                else if (stringKeys != null)
+                    t.setField(i++, new StringField(stringKeys[g], Type.STRING_LEN));
+                t.setField(i++, new IntField(min[g]));
+                t.setField(i++, new IntField(max[g]));
+                t.setField(i++, new IntField(sum[g]));
+                t.setField(i++, new IntField(count[g]));
+                t.setField(i, new IntField(sumCount[g]));
+                g++;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 
-        groups.put(groupVal, agg);
+    /**
+     * Combines a group state from {@link #partials} of an aggregator with
+     * the same grouping and operator into this one. Every operator's state
+     * merges exactly: the min of mins, the max of maxes, and the sums of
+     * sums, counts and sumCounts (so SUM_COUNT and SC_AVG partials merge
+     * into the same averages).
+     */
+    void mergePartial(Tuple partial) {
+        int i = gbfield == NO_GROUPING ? 0 : 1;
+        int g = groupOf(i == 0 ? null : partial.getField(0));
+        int pmin = ((IntField) partial.getField(i)).getValue();
+        int pmax = ((IntField) partial.getField(i + 1)).getValue();
+        if (pmin < min[g])
+            min[g] = pmin;
+        if (pmax > max[g])
+            max[g] = pmax;
+        sum[g] += ((IntField) partial.getField(i + 2)).getValue();
+        count[g] += ((IntField) partial.getField(i + 3)).getValue();
+        sumCount[g] += ((IntField) partial.getField(i + 4)).getValue();
+    }
+
+    // Returns the group of key (null without grouping), adding it if it is new
+    private int groupOf(Field key) {
+        if (key == null)
+            return groups == 0 ? newGroup() : 0;
+        if (intKeys != null)
+            return intGroup(((IntField) key).getValue());
+        return stringGroup(((StringField) key).getValue());
+    }
+
+    // Returns the group of an INT key, adding it if it is new
+    private int intGroup(int key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != 0) {
+            int g = table[slot] - 1;
+            if (intKeys[g] == key)
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        int g = newGroup();
+        intKeys[g] = key;
+        return added(slot, g);
+    }
+
+    // Returns the group of a STRING key, adding it if it is new
+    private int stringGroup(String key) {
+        int mask = table.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int g = table[slot] - 1;
+            if (stringKeys[g].equals(key))
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        int g = newGroup();
+        stringKeys[g] = key;
+        return added(slot, g);
+    }
+
+    // Puts new group g, whose key was not found, in the empty slot the probe ended at
+    private int added(int slot, int g) {
+        table[slot] = g + 1;
+        // keep the table at most half full
+        if (2 * groups > table.length)
+            rehash(2 * table.length);
+        return g;
+    }
+
+    // Spreads the bits of nearby keys over the whole table
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int g = 0; g < groups; g++) {
+            int slot = mix(intKeys != null ? intKeys[g] : stringKeys[g].hashCode()) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = g + 1;
+        }
+    }
+
+    // Adds an empty group and returns its number
+    private int newGroup() {
+        if (groups == count.length) {
+            int n = 2 * groups;
+            min = Arrays.copyOf(min, n);
+            max = Arrays.copyOf(max, n);
+            sum = Arrays.copyOf(sum, n);
+            count = Arrays.copyOf(count, n);
+            sumCount = Arrays.copyOf(sumCount, n);
+            if (intKeys != null)
+                intKeys = Arrays.copyOf(intKeys, n);
+            if (stringKeys != null)
+                stringKeys = Arrays.copyOf(stringKeys, n);
+        }
+        min[groups] = Integer.MAX_VALUE;
+        max[groups] = Integer.MIN_VALUE;
+        return groups++;
     }
 
     /**
@@ -71,7 +259,7 @@ public class IntegerAggregator implements Aggregator {
      * the constructor.
      */
     public DbIterator iterator() {
-        LinkedList<Tuple> result = new LinkedList<Tuple>();
+        ArrayList<Tuple> result = new ArrayList<Tuple>(groups);
         int aggField = 1;
         TupleDesc td;
 
@@ -88,39 +276,36 @@ public class IntegerAggregator implements Aggregator {
                 td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
         }
 
-        // iterate over groups and create summary tuples
-        for (String groupVal : groups.keySet()) {
-            AggregateFields agg = groups.get(groupVal);
+        // create a summary tuple for each group
+        for (int g = 0; g < groups; g++) {
             Tuple tup = new Tuple(td);
 
-            if (gbfield != NO_GROUPING) {
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else
-                    tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
-            }
+            if (intKeys != null)
+                tup.setField(0, new IntField(intKeys[g]));
+            else if (stringKeys != null)
+                tup.setField(0, new StringField(stringKeys[g], Type.STRING_LEN));
             switch (what) {
                 case MIN:
-                    tup.setField(aggField, new IntField(agg.min));
+                    tup.setField(aggField, new IntField(min[g]));
                     break;
                 case MAX:
-                    tup.setField(aggField, new IntField(agg.max));
+                    tup.setField(aggField, new IntField(max[g]));
                     break;
                 case SUM:
-                    tup.setField(aggField, new IntField(agg.sum));
+                    tup.setField(aggField, new IntField(sum[g]));
                     break;
                 case COUNT:
-                    tup.setField(aggField, new IntField(agg.count));
+                    tup.setField(aggField, new IntField(count[g]));
                     break;
                 case AVG:
-                    tup.setField(aggField, new IntField(agg.sum / agg.count));
+                    tup.setField(aggField, new IntField(sum[g] / count[g]));
                     break;
                 case SUM_COUNT:
-                    tup.setField(aggField, new IntField(agg.sum));
-                    tup.setField(aggField + 1, new IntField(agg.count));
+                    tup.setField(aggField, new IntField(sum[g]));
+                    tup.setField(aggField + 1, new IntField(count[g]));
                     break;
                 case SC_AVG:
-                    tup.setField(aggField, new IntField(agg.sum / agg.sumCount));
+                    tup.setField(aggField, new IntField(sum[g] / sumCount[g]));
                     break;
             }
 
@@ -131,20 +316,4 @@ public class IntegerAggregator implements Aggregator {
         retVal = new TupleIterator(td, Collections.unmodifiableList(result));
         return retVal;
     }
-
-    /**
-     * A helper struct to store accumulated aggregate values.
-     */
-    private class AggregateFields {
-        public String groupVal;
-        public int min, max, sum, count, sumCount;
-
-        public AggregateFields(String groupVal) {
-            this.groupVal = groupVal;
-            min = Integer.MAX_VALUE;
-            max = Integer.MIN_VALUE;
-            sum = count = sumCount = 0;
-        }
-    }
-
 }
@@ -3,17 +3,32 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loops join: it buffers a block of outer tuples and scans the inner
+ * child once per block rather than once per outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
-    
+
+    /**
+     * Default number of outer tuples per block. Can be overridden with the
+     * simpledb.JoinBlockTuples system property; 1 gives tuple-at-a-time
+     * nested loops.
+     */
+    public static final int DEFAULT_BLOCK_TUPLES = 1024;
+
     private JoinPredicate p;
     private DbIterator[] children;
-    
-	private Tuple t1 = null;
-	private Tuple t2 = null;
+    private final int blockTuples;
+
+    private transient TupleDesc td = null;
+    //The outer tuples of the current block
+    private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+    //The inner tuple being matched against the block, and the next block
+    //position to try it on
+    private transient Tuple t2 = null;
+    private transient int pos = 0;
 
 
     /**
@@ -25,10 +40,43 @@ public class Join extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, getDefaultBlockTuples());
+    }
+
+    /**
+     * Constructor with an explicit block size.
+     *
+     * @param blockTuples the number of outer tuples to buffer per scan of
+     *                    the inner relation
+     * @see #blockTuplesForPages(TupleDesc, int)
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockTuples) {
+        if (blockTuples < 1)
+            throw new IllegalArgumentException("Join: block size must be at least one tuple");
         this.p = p;
         children = new DbIterator[2];
         this.children[0] = child1;
         this.children[1] = child2;
+        this.blockTuples = blockTuples;
+    }
+
+    /**
+     * @return the block size used by joins that are not given one
+     */
+    public static int getDefaultBlockTuples() {
+        return Math.max(1, Integer.getInteger("simpledb.JoinBlockTuples", DEFAULT_BLOCK_TUPLES));
+    }
+
+    /**
+     * @return the number of tuples of schema td that fill the given number
+     * of pages, for sizing a block in pages
+     */
+    public static int blockTuplesForPages(TupleDesc td, int pages) {
+        return Math.max(1, pages * (BufferPool.getPageSize() / td.getSize()));
+    }
+
+    public int getBlockTuples() {
+        return blockTuples;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -64,6 +112,7 @@ public class Join extends Operator {
         super.open();
         children[0].open();
         children[1].open();
+        td = getTupleDesc();
         nullify();
     }
 
@@ -82,15 +131,25 @@ public class Join extends Operator {
     
     // Resets current tuple values
     private void nullify() {
-    	t1 = null;
+    	block = new ArrayList<Tuple>();
     	t2 = null;
+    	pos = 0;
+    }
+
+    // Reads the next block of outer tuples; false if there are none left
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+    	block.clear();
+    	while (block.size() < blockTuples && children[0].hasNext()) {
+    		block.add(children[0].next());
+    	}
+    	return !block.isEmpty();
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. Within a block of outer tuples, results
+     * come in inner order, and for each inner tuple in outer order.
      * <p/>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -105,56 +164,35 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    	if (t1==null) {
-    		if(children[0].hasNext()) {
-    			t1 = children[0].next();
-    		} else {
-    			return null;
+    	while (true) {
+    		while (t2 != null && pos < block.size()) {
+    			Tuple t1 = block.get(pos++);
+    			if (p.filter(t1, t2))
+    				return merge(t1, t2);
     		}
-    	}
-    	while(t1 != null) {
-    		if(children[1].hasNext()) {
+    		if (!block.isEmpty() && children[1].hasNext()) {
     			t2 = children[1].next();
+    			pos = 0;
     		} else {
-    			return null;
-    		}
-    		while(!p.filter(t1, t2)) {
-    			if(children[1].hasNext()) {
-    				t2 = children[1].next();
-    			} else {
-    				break;
-    			}
-    		}
-    		if(p.filter(t1, t2)) {
-    			Tuple temp1 = t1;
-    			Tuple temp2 = t2;
-    			//System.out.println("Join " + t1 + " || " + t2);
-    			if(!children[1].hasNext()) {
-    				if(children[0].hasNext()) {
-    					children[1].rewind();
-    					t1 = children[0].next();
-    				}
-    			}
-    			return merge(temp1,temp2);
-    		}
-    		if(children[0].hasNext()) {
-    			t1 = children[0].next();
-    			children[1].rewind();
-    		} else {
-    			t1 = null;
+    			// the inner child starts over for every block but the first
+    			boolean first = block.isEmpty();
+    			t2 = null;
+    			if (!fillBlock())
+    				return null;
+    			if (!first)
+    				children[1].rewind();
     		}
     	}
-    	return null;
     }
     
     private Tuple merge(Tuple t1, Tuple t2) {
-    	Tuple ret = new Tuple(getTupleDesc());
-    	
-    	for(int i=0;i<t1.getTupleDesc().numFields();i++) {
+    	Tuple ret = new Tuple(td);
+    	int n1 = t1.getTupleDesc().numFields();
+    	for(int i=0;i<n1;i++) {
     		ret.setField(i, t1.getField(i));
     	}
     	for(int i=0;i<t2.getTupleDesc().numFields();i++) {
-    		ret.setField(i+t1.getTupleDesc().numFields(), t2.getField(i));
+    		ret.setField(i+n1, t2.getField(i));
     	}
     	return ret;
     }
@@ -18,6 +18,16 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The physical join operators a logical join can be instantiated as.
+     */
+    public enum JoinMethod {
+        NESTED_LOOPS, HASH, SORT_MERGE
+    }
+
+    //Fraction of pairs assumed to satisfy a join predicate other than equality
+    private static final double RANGE_JOIN_SELECTIVITY = .30;
+
     /**
      * Constructor
      *
@@ -67,19 +77,17 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (DbIterator) ct
-                        .newInstance(new Object[]{p, plan1, plan2});
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
-        } else {
+        JoinMethod method = lj.method;
+        if (method == null)
+            method = lj.p == Predicate.Op.EQUALS ? JoinMethod.HASH : JoinMethod.NESTED_LOOPS;
+        switch (method) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        default:
             j = new Join(p, plan1, plan2);
         }
 
@@ -114,10 +122,55 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
         } else {
-            return cost1+(double)card1*cost2;
+            return joinCost(chooseJoinMethod(j, card1, card2, cost1, cost2),
+                    j.p, card1, card2, cost1, cost2);
         }
     }
 
+    /**
+     * Pick the cheapest join operator for a join with the given inputs.
+     * Equality joins are always hashed: a sort-merge join costs the same
+     * plus its sorts, and nested loops only win on inputs too small to
+     * matter. Other joins use a sort-merge join when it is cheaper than
+     * block nested loops.
+     *
+     * @see #estimateJoinCost
+     */
+    public static JoinMethod chooseJoinMethod(LogicalJoinNode j, int card1, int card2,
+                                              double cost1, double cost2) {
+        if (j.p == Predicate.Op.EQUALS)
+            return JoinMethod.HASH;
+        if (SortMergeJoin.supports(j.p) && joinCost(JoinMethod.SORT_MERGE, j.p, card1, card2, cost1, cost2)
+                < joinCost(JoinMethod.NESTED_LOOPS, j.p, card1, card2, cost1, cost2))
+            return JoinMethod.SORT_MERGE;
+        return JoinMethod.NESTED_LOOPS;
+    }
+
+    private static double joinCost(JoinMethod method, Predicate.Op op, int card1, int card2,
+                                   double cost1, double cost2) {
+        switch (method) {
+        case HASH:
+            // HashEquiJoin: one scan of each side, one hash of each tuple
+            return cost1 + cost2 + card1 + card2;
+        case SORT_MERGE:
+            // sort both sides, then one pass over each; a range join also
+            // reads every match (plus one tuple) per tuple of one side
+            double merge = card1 + card2;
+            if (op != Predicate.Op.EQUALS)
+                merge += RANGE_JOIN_SELECTIVITY * card1 * card2;
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + merge;
+        default:
+            // block nested loops: one inner scan per block of outer tuples,
+            // and the predicate applied to every pair
+            double blocks = Math.max(1.0, (double) card1 / Join.getDefaultBlockTuples());
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+    }
+
+    private static double sortCost(int card) {
+        return card * (Math.log(Math.max(card, 2)) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -183,7 +236,7 @@ public class JoinOptimizer {
         	}
         	
         default:
-			return (int)Math.round(((double)(card1*card2))*.30); //Arbitrary proportion from lab instructions
+			return (int)Math.round(((double)(card1*card2))*RANGE_JOIN_SELECTIVITY); //Arbitrary proportion from lab instructions
 			//TODO ensure 1
         }
     }
@@ -240,6 +293,10 @@ public class JoinOptimizer {
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
     	
+    	//A single-table query has nothing to order (and no plan in the cache)
+    	if (joins.isEmpty())
+    		return joins;
+    	
     	PlanCache pc = new PlanCache();
     	
     	for(int size=1; size<=joins.size();size++) {
@@ -399,6 +456,7 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        JoinMethod method = chooseJoinMethod(j, t1card, t2card, t1cost, t2cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -406,6 +464,7 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            method = chooseJoinMethod(j2, t2card, t1card, t2cost, t1cost);
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -416,6 +475,8 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        if (!(j instanceof LogicalSubplanJoinNode))
+            j = j.withMethod(method);
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
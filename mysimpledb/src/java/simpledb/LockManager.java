@@ -0,0 +1,650 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Lock {
+	TransactionId tid;
+	Permissions perm;
+	//Set while the request is queued
+	LockEntry entry;
+	//Set when the request's transaction was picked as a deadlock victim
+	volatile boolean aborted;
+	//Transactions this queued request waits for; guarded by the LockManager's graph lock
+	Set<TransactionId> waitsFor = Collections.emptySet();
+
+	Lock(TransactionId tid, Permissions perm) {
+		this.tid = tid;
+		this.perm = perm;
+	}
+
+	public boolean equals(Object o) {
+		Lock other;
+		if (o instanceof Lock) {
+			other = (Lock)o;
+		} else {
+			return false;
+		}
+		return this.tid.equals(other.tid) && this.perm.equals(other.perm);
+	}
+
+	public String toString() {
+		String ret = "";
+		ret+="Tid: " + tid;
+		ret+=" Perm: " + perm;
+		return ret;
+	}
+}
+
+class LockEntry {
+	final PageId pid;
+	HashSet<TransactionId> active = new HashSet<TransactionId>();
+	LinkedList<Lock> waitingRequests = new LinkedList<Lock>();
+	boolean isReadOnly;
+	//Signalled whenever a waiting request on this page is granted
+	final Condition granted;
+
+	LockEntry(PageId pid, TransactionId tid, Permissions perm, Condition granted) {
+		this.pid = pid;
+		this.granted = granted;
+		set(tid,perm);
+	}
+
+	void set(TransactionId tid, Permissions perm) {
+		if(active.size()==0) {
+			active.add(tid);
+			isReadOnly = perm.equals(Permissions.READ_ONLY);
+		}
+	}
+
+	void set(Lock l) {
+		set(l.tid,l.perm);
+	}
+
+	boolean add(TransactionId tid, Permissions perm) {
+		if(isReadOnly && perm.equals(Permissions.READ_ONLY)) {
+			active.add(tid);
+			return true;
+		}
+		return false;
+	}
+
+	boolean containsTid(TransactionId tid) {
+		return active.contains(tid);
+	}
+
+	public String toString() {
+		String ret = "";
+		ret += "Active: ";
+		ret += active + "\n";
+		ret += "Queue: ";
+		ret += waitingRequests;
+		return ret;
+	}
+}
+
+/**
+ * LockManager keeps a shared/exclusive lock per page. Requests that cannot be
+ * granted immediately are queued in FIFO order on the page's LockEntry, and
+ * the requesting thread parks on that entry's condition until releaseLock or
+ * abort hands the lock over. Upgrades from shared to exclusive jump to the
+ * front of the queue.
+ * <p/>
+ * The lock table is hash-partitioned by PageId into stripes, each guarded by
+ * its own ReentrantLock, so transactions locking unrelated pages do not
+ * serialize on one monitor. The number of stripes can be set with the system
+ * property simpledb.LockStripes; one stripe behaves like a single table lock.
+ * Per-transaction state (held pages, queued requests) lives in concurrent maps
+ * so that abort can visit the stripes one at a time.
+ * <p/>
+ * Deadlocks are detected on a waits-for graph whose edges are kept on the
+ * queued requests of each waiting transaction: a request waits for the
+ * conflicting holders of its page and the conflicting requests queued ahead
+ * of it. The edges live under their own graph lock and are recomputed, with
+ * the page's stripe held, whenever the queue or holders of a page with
+ * waiters change, so the graph is always consistent without holding every
+ * stripe. Every new cycle must pass through a transaction that just started
+ * waiting, so the graph is searched from the requester each time a wait
+ * starts, and a victim chosen by the VictimPolicy is aborted. The victim
+ * policy can be set with the system property simpledb.DeadlockVictim.
+ */
+class LockManager {
+	enum VictimPolicy {
+		YOUNGEST,     //abort the most recently started transaction in the cycle
+		FEWEST_LOCKS  //abort the transaction holding the fewest locks, youngest on ties
+	}
+
+	/**
+	 * Number of stripes used when simpledb.LockStripes is not set.
+	 */
+	static final int DEFAULT_STRIPES = 16;
+
+	//One partition of the lock table
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final HashMap<PageId,LockEntry> locks = new HashMap<PageId,LockEntry>();
+	}
+
+	private final Stripe[] stripes;
+
+	//Queued requests of every waiting transaction; the nodes of the waits-for graph
+	private ConcurrentHashMap<TransactionId,List<Lock>> waiting = new ConcurrentHashMap<TransactionId,List<Lock>>();
+	//Pages each transaction holds a lock on, so release touches only those
+	private ConcurrentHashMap<TransactionId,Set<PageId>> held = new ConcurrentHashMap<TransactionId,Set<PageId>>();
+	private volatile VictimPolicy victimPolicy;
+	//Guards the waits-for edges of queued requests; taken after a stripe, never before one
+	private final Object graphLock = new Object();
+
+	//Deadlock detection statistics, guarded by graphLock
+	private long detectionRuns = 0;
+	private long deadlocksFound = 0;
+	private long detectionNanos = 0;
+	private long maxDetectionNanos = 0;
+
+	LockManager() {
+		this(Integer.getInteger("simpledb.LockStripes", DEFAULT_STRIPES));
+	}
+
+	LockManager(int numStripes) {
+		if(numStripes < 1) {
+			throw new IllegalArgumentException("LockManager needs at least one stripe");
+		}
+		stripes = new Stripe[numStripes];
+		for(int i=0;i<numStripes;i++) {
+			stripes[i] = new Stripe();
+		}
+		String policy = System.getProperty("simpledb.DeadlockVictim");
+		victimPolicy = policy == null ? VictimPolicy.YOUNGEST : VictimPolicy.valueOf(policy.toUpperCase());
+	}
+
+	void setVictimPolicy(VictimPolicy policy) {
+		victimPolicy = policy;
+	}
+
+	private Stripe stripeFor(PageId pid) {
+		return stripes[(pid.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	public void acquireLock(PageId pid,TransactionId tid,Permissions perm)
+			throws TransactionAbortedException {
+		LockEntry lockentry;
+		Lock lock = new Lock(tid, perm);
+		Stripe stripe = stripeFor(pid);
+
+		stripe.lock.lock();
+		try {
+			lockentry =  stripe.locks.get(pid);
+			//No lock has been taken out on this page.
+			if(lockentry==null) {
+				LockEntry le = new LockEntry(pid,tid,perm,stripe.lock.newCondition());
+				stripe.locks.put(pid,le);
+				addHeld(tid,pid);
+				return;
+			}
+			//LockEntry is initialized, but not in use, add new lock to active set
+			if(lockentry.active.size() == 0 && lockentry.waitingRequests.size() == 0) {
+				lockentry.set(tid,perm);
+				addHeld(tid,pid);
+				return;
+			}
+
+			//Lock already held with sufficient permissions
+			if(lockentry.containsTid(tid) && (perm.equals(Permissions.READ_ONLY) || !lockentry.isReadOnly)) {
+				return;
+			}
+
+			//Lock is read only, add read only lock request to active set unless a writer is queued
+			if(lockentry.waitingRequests.size() == 0 && lockentry.add(tid,perm)) {
+				addHeld(tid,pid);
+				return;
+			}
+
+			//Another thread of this transaction may already be waiting for the same lock
+			int queued = lockentry.waitingRequests.indexOf(lock);
+			if(queued != -1) {
+				lock = lockentry.waitingRequests.get(queued);
+			} else if(perm.equals(Permissions.READ_WRITE) && lockentry.containsTid(tid)) {
+				//Upgrade: Lock is read-only, acquisition request is r/w
+				if(lockentry.active.size() > 1) {
+					lockentry.waitingRequests.push(lock);
+				} else {
+					lockentry.isReadOnly = false;
+					//Queued readers now wait for us
+					refreshEdges(lockentry);
+					return;
+				}
+			} else {
+				//Normal case: queue behind earlier requests
+				lockentry.waitingRequests.add(lock);
+			}
+			lock.entry = lockentry;
+			addWaiter(lock);
+			refreshEdges(lockentry);
+		} finally {
+			stripe.lock.unlock();
+		}
+
+		//The search runs without our stripe, so other requests on this page go on meanwhile
+		try {
+			resolveDeadlocks(lock);
+
+			//Park until releaseLock or abort grants the request
+			stripe.lock.lock();
+			try {
+				while(!lock.aborted && isQueued(lockentry,lock)) {
+					try {
+						lockentry.granted.await();
+					} catch (InterruptedException e) {
+						cancel(lockentry,lock);
+						throw new TransactionAbortedException();
+					}
+				}
+				if(lock.aborted) {
+					throw new TransactionAbortedException();
+				}
+			} finally {
+				//A thread stopped inside await() may leave it without the stripe
+				if(!stripe.lock.isHeldByCurrentThread()) {
+					stripe.lock.lock();
+				}
+				try {
+					//Our thread is leaving abnormally (e.g. it was stopped) with the request still queued
+					if(!lock.aborted && isQueued(lockentry,lock)) {
+						cancel(lockentry,lock);
+					}
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+		} finally {
+			removeWaiter(lock);
+		}
+	}
+
+	//Concurrent maps reject null keys, but pages may be fetched without a transaction
+	private static final TransactionId NO_TRANSACTION = new TransactionId();
+
+	private static TransactionId key(TransactionId tid) {
+		return tid == null ? NO_TRANSACTION : tid;
+	}
+
+	private void addWaiter(Lock lock) {
+		List<Lock> requests = waiting.get(key(lock.tid));
+		if(requests == null) {
+			List<Lock> fresh = new CopyOnWriteArrayList<Lock>();
+			requests = waiting.putIfAbsent(key(lock.tid),fresh);
+			if(requests == null) {
+				requests = fresh;
+			}
+		}
+		requests.add(lock);
+	}
+
+	//The (empty) list itself is dropped by abort, once the transaction is over
+	private void removeWaiter(Lock lock) {
+		List<Lock> requests = waiting.get(key(lock.tid));
+		if(requests != null) {
+			requests.remove(lock);
+		}
+	}
+
+	private void addHeld(TransactionId tid, PageId pid) {
+		Set<PageId> pages = held.get(key(tid));
+		if(pages == null) {
+			Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+			pages = held.putIfAbsent(key(tid),fresh);
+			if(pages == null) {
+				pages = fresh;
+			}
+		}
+		pages.add(pid);
+	}
+
+	private void removeHeld(TransactionId tid, PageId pid) {
+		Set<PageId> pages = held.get(key(tid));
+		if(pages != null) {
+			pages.remove(pid);
+		}
+	}
+
+	//Drops the entry of a page nobody holds or waits for, so the table only grows with live locks
+	private void retireIfIdle(LockEntry lockentry) {
+		if(lockentry.active.isEmpty() && lockentry.waitingRequests.isEmpty()) {
+			stripeFor(lockentry.pid).locks.remove(lockentry.pid);
+		}
+	}
+
+	private boolean isQueued(LockEntry lockentry, Lock lock) {
+		for(Lock l : lockentry.waitingRequests) {
+			if(l == lock) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Searches the waits-for graph for cycles through the transaction of a
+	 * request that just started waiting, aborting one victim per cycle until
+	 * none is left.
+	 *
+	 * @throws TransactionAbortedException if the requester was the victim
+	 */
+	private void resolveDeadlocks(Lock lock) throws TransactionAbortedException {
+		while(!lock.aborted) {
+			TransactionId victim;
+			synchronized (graphLock) {
+				long start = System.nanoTime();
+				ArrayList<TransactionId> cycle = findCycle(lock.tid);
+				long elapsed = System.nanoTime() - start;
+				detectionRuns++;
+				detectionNanos += elapsed;
+				maxDetectionNanos = Math.max(maxDetectionNanos, elapsed);
+				if(cycle == null) {
+					return;
+				}
+
+				deadlocksFound++;
+				victim = chooseVictim(cycle);
+				Debug.log("LockManager: deadlock %s found in %d us (%d so far), aborting %s",
+						cycle, elapsed/1000, deadlocksFound, victim);
+			}
+			//Stripes come before the graph lock, so the victim is aborted after releasing it;
+			//the requests of a deadlocked victim cannot be granted meanwhile
+			abortWaits(victim);
+			if(lock.aborted) {
+				throw new TransactionAbortedException();
+			}
+		}
+	}
+
+	/**
+	 * @return the transactions on a path from start back to itself in the
+	 * waits-for graph, or null if start is not on a cycle
+	 */
+	private ArrayList<TransactionId> findCycle(TransactionId start) {
+		HashMap<TransactionId,TransactionId> parent = new HashMap<TransactionId,TransactionId>();
+		LinkedList<TransactionId> stack = new LinkedList<TransactionId>();
+		parent.put(start,null);
+		stack.push(start);
+		while(!stack.isEmpty()) {
+			TransactionId u = stack.pop();
+			for(TransactionId v : waitsFor(u)) {
+				if(v.equals(start)) {
+					ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+					for(TransactionId t = u; t != null; t = parent.get(t)) {
+						cycle.add(t);
+					}
+					return cycle;
+				}
+				if(!parent.containsKey(v)) {
+					parent.put(v,u);
+					stack.push(v);
+				}
+			}
+		}
+		return null;
+	}
+
+	//Outgoing edges of tid in the waits-for graph. Caller must hold graphLock.
+	private HashSet<TransactionId> waitsFor(TransactionId tid) {
+		HashSet<TransactionId> result = new HashSet<TransactionId>();
+		List<Lock> requests = waiting.get(key(tid));
+		if(requests == null) {
+			return result;
+		}
+		for(Lock l : requests) {
+			result.addAll(l.waitsFor);
+		}
+		result.remove(tid);
+		return result;
+	}
+
+	/**
+	 * Recomputes the waits-for edges of every request queued on lockentry,
+	 * after its queue or holders changed. Caller must hold the stripe of the
+	 * entry's page.
+	 */
+	private void refreshEdges(LockEntry lockentry) {
+		ArrayList<Set<TransactionId>> edges = new ArrayList<Set<TransactionId>>();
+		ArrayList<TransactionId> writersAhead = new ArrayList<TransactionId>();
+		ArrayList<TransactionId> allAhead = new ArrayList<TransactionId>();
+		for(Lock l : lockentry.waitingRequests) {
+			boolean exclusive = l.perm.equals(Permissions.READ_WRITE);
+			HashSet<TransactionId> out = new HashSet<TransactionId>(exclusive ? allAhead : writersAhead);
+			if(exclusive || !lockentry.isReadOnly) {
+				out.addAll(lockentry.active);
+			}
+			edges.add(out);
+			allAhead.add(l.tid);
+			if(exclusive) {
+				writersAhead.add(l.tid);
+			}
+		}
+		synchronized (graphLock) {
+			int i = 0;
+			for(Lock l : lockentry.waitingRequests) {
+				l.waitsFor = edges.get(i++);
+			}
+		}
+	}
+
+	//Drops the edges of a request that left the queue. Caller must hold its page's stripe.
+	private void clearEdges(Lock lock) {
+		synchronized (graphLock) {
+			lock.waitsFor = Collections.emptySet();
+		}
+	}
+
+	private int heldCount(TransactionId tid) {
+		Set<PageId> pages = held.get(key(tid));
+		return pages == null ? 0 : pages.size();
+	}
+
+	private TransactionId chooseVictim(ArrayList<TransactionId> cycle) {
+		TransactionId victim = null;
+		for(TransactionId t : cycle) {
+			if(victim == null) {
+				victim = t;
+				continue;
+			}
+			if(victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+				int diff = heldCount(t) - heldCount(victim);
+				if(diff < 0 || (diff == 0 && t.getId() > victim.getId())) {
+					victim = t;
+				}
+			} else if(t.getId() > victim.getId()) {
+				victim = t;
+			}
+		}
+		return victim;
+	}
+
+	//Fails every queued request of tid and wakes the threads waiting on them
+	private void abortWaits(TransactionId tid) {
+		List<Lock> requests = waiting.get(key(tid));
+		if(requests == null) {
+			return;
+		}
+		for(Lock l : requests) {
+			Stripe stripe = stripeFor(l.entry.pid);
+			stripe.lock.lock();
+			try {
+				//Only requests still waiting; one granted since the search can go on
+				if(!l.aborted && isQueued(l.entry,l)) {
+					l.aborted = true;
+					cancel(l.entry,l);
+					l.entry.granted.signalAll();
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of times the waits-for graph was searched
+	 */
+	long getDetectionRuns() {
+		synchronized (graphLock) {
+			return detectionRuns;
+		}
+	}
+
+	/**
+	 * @return the number of deadlocks found, which is also the number of
+	 * victims aborted
+	 */
+	long getDeadlockCount() {
+		synchronized (graphLock) {
+			return deadlocksFound;
+		}
+	}
+
+	/**
+	 * @return the mean and maximum time of a waits-for graph search, in ns
+	 */
+	long[] getDetectionLatency() {
+		synchronized (graphLock) {
+			long mean = detectionRuns == 0 ? 0 : detectionNanos / detectionRuns;
+			return new long[] {mean, maxDetectionNanos};
+		}
+	}
+
+	//Withdraws a waiting request; requests queued behind it may now be grantable.
+	//Caller must hold the stripe of the request's page.
+	private void cancel(LockEntry lockentry, Lock lock) {
+		if(lockentry.waitingRequests.remove(lock)) {
+			clearEdges(lock);
+		}
+		grantWaiters(lockentry);
+		retireIfIdle(lockentry);
+	}
+
+	/**
+	 * Grants queued requests in FIFO order for as long as the head of the
+	 * queue is compatible with the current holders, then wakes the waiters
+	 * of this entry. Caller must hold the stripe of the entry's page.
+	 */
+	private void grantWaiters(LockEntry lockentry) {
+		if(lockentry.waitingRequests.isEmpty()) {
+			return;
+		}
+		boolean grantedAny = false;
+		while(lockentry.waitingRequests.size() > 0) {
+			Lock l = lockentry.waitingRequests.peek();
+			if(lockentry.active.size() == 0) {
+				lockentry.set(l);
+			} else if(lockentry.active.size() == 1 && lockentry.active.contains(l.tid)
+					&& l.perm.equals(Permissions.READ_WRITE)) {
+				//Upgrade of the only remaining reader
+				lockentry.isReadOnly = false;
+			} else if(!lockentry.add(l.tid,l.perm)) {
+				break;
+			}
+			addHeld(l.tid,lockentry.pid);
+			lockentry.waitingRequests.pop();
+			clearEdges(l);
+			grantedAny = true;
+		}
+		//The holders changed (or the caller removed one), so the remaining waiters' edges did too
+		refreshEdges(lockentry);
+		if(grantedAny) {
+			lockentry.granted.signalAll();
+		}
+	}
+
+	public void releaseLock(PageId pid,TransactionId tid) {
+		Stripe stripe = stripeFor(pid);
+		stripe.lock.lock();
+		try {
+			LockEntry lockentry = stripe.locks.get(pid);
+			if(lockentry == null) {
+				return;
+			}
+
+			//Remove locks in active set
+			lockentry.active.remove(tid);
+			removeHeld(tid,pid);
+
+			//Hand the lock to whichever queued requests are now compatible
+			grantWaiters(lockentry);
+			retireIfIdle(lockentry);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	public boolean checkLock(TransactionId tid, PageId p) {
+		Stripe stripe = stripeFor(p);
+		stripe.lock.lock();
+		try {
+			LockEntry lockentry = stripe.locks.get(p);
+			if(lockentry==null) {
+				return false;
+			}
+			return lockentry.containsTid(tid);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the set of pages tid holds a lock on
+	 */
+	public HashSet<PageId> getLockedPages(TransactionId tid) {
+		Set<PageId> pages = held.get(key(tid));
+		return pages == null ? new HashSet<PageId>() : new HashSet<PageId>(pages);
+	}
+
+	//Removes all Locks that have tid; touches only the stripes of the pages tid holds or waits for
+	public void abort(TransactionId tid) {
+		//Other threads of this transaction may still be waiting
+		abortWaits(tid);
+		waiting.remove(key(tid));
+
+		Set<PageId> pages = held.remove(key(tid));
+		if(pages == null) {
+			return;
+		}
+		for(PageId pid : pages) {
+			Stripe stripe = stripeFor(pid);
+			stripe.lock.lock();
+			try {
+				LockEntry le = stripe.locks.get(pid);
+				if(le != null) {
+					le.active.remove(tid);
+					grantWaiters(le);
+					retireIfIdle(le);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	//Visits the stripes one at a time, so the result need not be a consistent snapshot
+	public String toString() {
+		HashMap<PageId,String> all = new HashMap<PageId,String>();
+		for(Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				for(LockEntry le : stripe.locks.values()) {
+					all.put(le.pid,le.toString());
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return all.toString();
+	}
+}
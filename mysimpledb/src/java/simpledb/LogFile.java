@@ -4,6 +4,18 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +44,17 @@ import java.lang.reflect.*;
  }
  }
  </pre>
+
+ <p>
+ Forcing the log ({@link #forceTo}) takes neither monitor, so commits
+ append their records under the LogFile monitor and then share forces
+ outside it (group commit).
+
+ <p>
+ Records are encoded into an in-memory log buffer and written to the
+ file, in one sequential channel write, when the buffer fills or the log
+ is forced. Records still in the buffer are lost in a crash, like any
+ record that was not forced.
  */
 
 /**
@@ -49,10 +72,12 @@ import java.lang.reflect.*;
  * transaction id.
  * <p/>
  * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * the position in the log file where the record began.  A record's LSN
+ * is this offset plus the number of bytes truncated from the front of
+ * the log so far, so LSNs increase in the order records are appended.
  * <p/>
- * <li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
- * CHECKPOINT, and CLR
+ * <li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * CHECKPOINT, CLR, DELTA and DELTA_CLR
  * <p/>
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  * <p/>
@@ -65,10 +90,22 @@ import java.lang.reflect.*;
  * compensating log record and it is written during undo phase of rollback
  * and recovery.
  * <p/>
+ * <li>DELTA RECORDS take the place of UPDATE records for HeapPages.  They
+ * hold only the tuple slots changed since the previous record for the
+ * page, with the slot bytes to redo and undo each change; see
+ * HeapPageDelta.write().  DELTA_CLR records hold the changes that undo
+ * a DELTA record.
+ * <p/>
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id for each active transaction.
+ * the checkpoint was taken and their first log record on disk, and of the
+ * dirty pages in the buffer pool with their recovery offsets.  The format
+ * of the record is an integer count of the number of transactions, then a
+ * long integer transaction id and a long integer offset for each active
+ * transaction, an integer count of the number of dirty pages, then an
+ * integer table id, an integer page number and a long integer offset for
+ * each dirty page.  Checkpoints are fuzzy: pages are not written when the
+ * record is, so recovery redoes from the smallest offset of a dirty page
+ * (or from the checkpoint, if that comes first).
  * <p/>
  * </ul>
  *
@@ -79,6 +116,7 @@ public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    private FileChannel channel;
     private LogFileRecovery logFileRecovery;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
@@ -88,6 +126,80 @@ public class LogFile {
     final static int LONG_SIZE = 8;
 
     private Set<Long> activeTids = new HashSet<Long>();
+    //LSN of the BEGIN record of each transaction in activeTids
+    private Map<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
+    //LSN of the last checkpoint record written, and where recovery from it
+    //starts redoing
+    private long lastCheckpoint = NO_CHECKPOINT_ID;
+    private long lastRedoStart = NO_CHECKPOINT_ID;
+    //Bytes dropped from the front of the log by logTruncate; the record at
+    //file offset o has LSN o + dropped
+    private long dropped = 0;
+    //Whether a truncation is copying the log
+    private boolean truncating = false;
+    //Bytes copied at a time by a truncation
+    private static final long TRANSFER_SIZE = 1 << 20;
+    //Background truncation after checkpoints, shared by every log file
+    private static final ExecutorService truncator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LogFile truncator");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    //The last background truncation of this log, and whether it must stop
+    private Future<?> truncation = null;
+    private volatile boolean stopTruncating = false;
+
+    /**
+     * Default number of callers of {@link #forceTo} a group commit leader
+     * waits for, at most the group commit delay, before forcing the log.
+     * Can be overridden with the simpledb.GroupCommitSize system property;
+     * 1 turns group commit off, so that every caller forces the log itself.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+
+    /**
+     * Default longest time, in microseconds, a group commit leader waits
+     * for its group to fill. Can be overridden with the
+     * simpledb.GroupCommitDelay system property. With no delay the leader
+     * forces at once, and the callers that arrive meanwhile form the next
+     * group.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+
+    private volatile int groupCommitSize = Integer.getInteger("simpledb.GroupCommitSize", DEFAULT_GROUP_COMMIT_SIZE);
+    private volatile long groupCommitDelay = Long.getLong("simpledb.GroupCommitDelay", DEFAULT_GROUP_COMMIT_DELAY);
+
+    //Group commit state, guarded by forceLock: the log is durable up to
+    //durableOffset; a leader is forcing; callers waiting in forceTo
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final Condition forced = forceLock.newCondition();
+    private final Condition joined = forceLock.newCondition();
+    private long durableOffset = 0;
+    private boolean forcing = false;
+    private int waiting = 0;
+    //End of the records appended so far; written under the LogFile monitor
+    private volatile long appendedOffset = 0;
+    //Number of times the log was forced to disk
+    private final AtomicLong forces = new AtomicLong();
+
+    /**
+     * Default size in bytes of the log buffer. Can be overridden with the
+     * simpledb.LogBufferSize system property; the buffer always holds at
+     * least one UPDATE record.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    //Records not written to the file yet; buffer[0] goes at file offset
+    //bufferStart. Guarded by the LogFile monitor
+    private ByteBuffer buffer;
+    private long bufferStart = 0;
+    //LSN of the end of the records written to the file
+    private volatile long writtenOffset = 0;
+
+    //Class names as written by DataOutput.writeUTF, for writePageData
+    private static final ConcurrentHashMap<String, byte[]> UTF = new ConcurrentHashMap<String, byte[]>();
 
     /**
      * Constructor.
@@ -104,6 +216,9 @@ public class LogFile {
     public LogFile(File f) throws IOException {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        buffer = ByteBuffer.allocate(Math.max(Integer.getInteger("simpledb.LogBufferSize", DEFAULT_BUFFER_SIZE),
+                2 * BufferPool.getPageSize() + 1024));
         recoveryUndecided = true;
         logFileRecovery = new LogFileRecovery(new RandomAccessFile(logFile, "r"));
 
@@ -125,18 +240,72 @@ public class LogFile {
         // the log.
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            channel.truncate(0);
+            writeCheckpointOffset(NO_CHECKPOINT_ID);
+            appendAt(LONG_SIZE);
         }
-        // we're about to append a log record... make sure we're at the end of the log!
-        if (raf.getFilePointer() != raf.length()) {
-            throw new RuntimeException("About to append to log file but not" +
-                    " located at end of log!  Risk overwriting log data!");
+    }
+
+    // Appends from now on go at offset, the end of the file
+    private void appendAt(long offset) {
+        buffer.clear();
+        bufferStart = offset;
+        writtenOffset = offset + dropped;
+        appendedOffset = offset + dropped;
+        forceLock.lock();
+        try {
+            durableOffset = 0;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // Writes the offset of the last checkpoint at the start of the file
+    private void writeCheckpointOffset(long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        b.putLong(offset);
+        b.flip();
+        while (b.hasRemaining()) {
+            channel.write(b, b.position());
         }
     }
 
+    /**
+     * Starts a record with its type and tid in the log buffer, making
+     * room for size more bytes of data, and returns the record's LSN.
+     * Must be followed by the data and then {@link #endRecord}.
+     */
+    private long startRecord(int type, long tid, int size) throws IOException {
+        int n = INT_SIZE + LONG_SIZE + size + LONG_SIZE;
+        if (buffer.remaining() < n) {
+            flushBuffer();
+            if (buffer.capacity() < n)
+                buffer = ByteBuffer.allocate(n);
+        }
+        long lsn = dropped + bufferStart + buffer.position();
+        buffer.putInt(type);
+        buffer.putLong(tid);
+        return lsn;
+    }
+
+    // Ends the record with LSN lsn, and returns the end of the log
+    private long endRecord(long lsn) {
+        buffer.putLong(lsn - dropped);
+        appendedOffset = dropped + bufferStart + buffer.position();
+        return appendedOffset;
+    }
+
+    // Writes the log buffer to the end of the file, and empties it
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, bufferStart + buffer.position());
+        }
+        bufferStart += buffer.limit();
+        buffer.clear();
+        writtenOffset = dropped + bufferStart;
+    }
+
     private void checkActive(TransactionId tid, boolean shouldBeActive) throws IOException {
         // should check for active but many test cases do not explicitly start and stop
         // transactions and so checking for active can cause tests to fail
@@ -162,11 +331,10 @@ public class LogFile {
             throws IOException {
         checkActive(tid, false);
         preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
+        long lsn = startRecord(LogType.BEGIN_RECORD, tid.getId(), 0);
+        endRecord(lsn);
         activeTids.add(tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), lsn);
     }
 
     /**
@@ -175,17 +343,19 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        //should we verify that this is a live transaction?
-        checkActive(tid, true);
-        preAppend();
-
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
-        force();
-        activeTids.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            //should we verify that this is a live transaction?
+            checkActive(tid, true);
+            preAppend();
+            end = endRecord(startRecord(LogType.COMMIT_RECORD, tid.getId(), 0));
+            // a checkpoint after the record must not list tid as active
+            activeTids.remove(tid.getId());
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // forced outside the monitor, so concurrent commits share one force
+        forceTo(end);
     }
 
     /**
@@ -195,6 +365,7 @@ public class LogFile {
      * @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
+        long end;
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
@@ -206,26 +377,30 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
+                flushBuffer(); // rollback reads the file
                 logFileRecovery.rollback(tid);
+                end = appendedOffset;
             }
         }
+        // forced outside both monitors, so the abort shares a force with commits
+        forceTo(end);
     }
 
     /**
-     * Write a commit record to disk for the specified tid,
-     * and force the log to disk.
+     * Write an abort record for the specified tid. The log is not
+     * forced: the caller forces it, with {@link #forceTo}, once it has
+     * released the BufferPool and LogFile locks.
      *
-     * @param tid The committing transaction.  Need long because may
+     * @param tid The aborting transaction.  Need long because may
      *            not have a live transaction.
+     * @return the end of the log after the record
      */
-    public synchronized void logAbort(Long tid) throws IOException {
+    public synchronized long logAbort(Long tid) throws IOException {
         preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.ABORT_RECORD);
-        raf.writeLong(tid);
-        raf.writeLong(recordStart);
-        force();
+        long end = endRecord(startRecord(LogType.ABORT_RECORD, tid, 0));
         activeTids.remove(tid);
+        tidToFirstLogRecord.remove(tid);
+        return end;
     }
 
     /**
@@ -235,13 +410,22 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
         checkActive(tid, true);
         preAppend();
+        if (after instanceof HeapPage) {
+            // just the changed slots, not two page images
+            HeapPageDelta delta = ((HeapPage) after).takeDelta(before);
+            long lsn = startRecord(LogType.DELTA_RECORD, tid.getId(), delta.size());
+            delta.write(buffer);
+            endRecord(lsn);
+            return lsn;
+        }
         /* update record consists of
 
            record type
@@ -251,12 +435,12 @@ public class LogFile {
            start offset
         */
 
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
+        long lsn = startRecord(LogType.UPDATE_RECORD, tid.getId(),
+                pageDataSize(before) + pageDataSize(after));
+        writePageData(buffer, before);
+        writePageData(buffer, after);
+        endRecord(lsn);
+        return lsn;
     }
 
     /**
@@ -265,11 +449,12 @@ public class LogFile {
      *
      * @param tid    The transaction performing the write
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logCLR(TransactionId tid, Page after)
+    public synchronized long logCLR(TransactionId tid, Page after)
             throws IOException {
-        logCLR(tid.getId(), after);
+        return logCLR(tid.getId(), after);
     }
 
     /**
@@ -279,9 +464,10 @@ public class LogFile {
      * @param tid    The transaction performing the write. Need
      *               long because may not have a live transaction.
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logCLR(Long tid, Page after)
+    public synchronized long logCLR(Long tid, Page after)
             throws IOException {
 
         // transaction may be active or we may be in recovery mode
@@ -293,15 +479,55 @@ public class LogFile {
            after page data (see writePageData)
            start offset
         */
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.CLR_RECORD);
-        raf.writeLong(tid);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
+        long lsn = startRecord(LogType.CLR_RECORD, tid, pageDataSize(after));
+        writePageData(buffer, after);
+        endRecord(lsn);
+        return lsn;
     }
 
+    /**
+     * Write a DELTA_CLR record to disk for the specified tid, with the
+     * changes that undo a DELTA record.
+     *
+     * @param tid          The transaction being rolled back. Need long
+     *                     because may not have a live transaction.
+     * @param compensation The inverse of the changes being undone
+     * @return the LSN of the record
+     * @see HeapPageDelta#inverse
+     */
+    synchronized long logCLR(Long tid, HeapPageDelta compensation)
+            throws IOException {
+        preAppend();
+        long lsn = startRecord(LogType.DELTA_CLR_RECORD, tid, compensation.size());
+        compensation.write(buffer);
+        endRecord(lsn);
+        return lsn;
+    }
+
+    // The number of bytes writePageData writes for p
+    static int pageDataSize(Page p) {
+        PageId pid = p.getId();
+        return utf(p.getClass().getName()).length + utf(pid.getClass().getName()).length
+                + INT_SIZE * (pid.serialize().length + 2) + BufferPool.getPageSize();
+    }
+
+    // s in modified UTF-8, with its length first, as DataOutput.writeUTF writes it
+    private static byte[] utf(String s) {
+        byte[] b = UTF.get(s);
+        if (b == null) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                new DataOutputStream(bytes).writeUTF(s);
+                b = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException("LogFile: could not encode " + s + ": " + e);
+            }
+            UTF.put(s, b);
+        }
+        return b;
+    }
 
-    static void writePageData(RandomAccessFile raf, Page p) throws IOException {
+    static void writePageData(ByteBuffer buf, Page p) {
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -316,16 +542,15 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        buf.put(utf(pageClassName));
+        buf.put(utf(idClassName));
 
-        raf.writeInt(pageInfo.length);
+        buf.putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            buf.putInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        buf.putInt(BufferPool.getPageSize());
+        p.getPageData(buf);
     }
 
     static Page readPageData(RandomAccessFile raf) throws IOException {
@@ -347,7 +572,6 @@ public class LogFile {
             }
             pid = (PageId) idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -357,7 +581,9 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+            //Pages may have several constructors; pick the (id, byte[]) one
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
+            newPage = (Page) pageConst.newInstance(pageArgs);
 
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
@@ -371,66 +597,312 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p/>
+     * The checkpoint is fuzzy: the record holds the active transactions
+     * and the dirty page table, and both locks are held only while it is
+     * appended. The dirty pages are then written by the buffer pool's
+     * background writer, and the log truncated in the background, while
+     * transactions keep running.
+     *
+     * @see BufferPool#flushPagesInBackground
+     * @see #truncateInBackground
      */
     public void logCheckpoint() throws IOException {
+        long cp, redoStart, end;
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                long startCpOffset, endCpOffset;
 
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(LogType.CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                HashMap<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                //no tid , but leave space for convenience
+                cp = startRecord(LogType.CHECKPOINT_RECORD, -1,
+                        INT_SIZE + 2 * LONG_SIZE * tidToFirstLogRecord.size()
+                                + INT_SIZE + (2 * INT_SIZE + LONG_SIZE) * dirtyPages.size());
 
                 //write list of outstanding transactions
-                raf.writeInt(activeTids.size());
-                for (Long key : activeTids) {
-                    raf.writeLong(key);
+                buffer.putInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    buffer.putLong(e.getKey());
+                    buffer.putLong(e.getValue() - dropped);
                 }
+                //and of dirty pages
+                redoStart = cp;
+                buffer.putInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    long recLsn = Math.max(e.getValue(), LONG_SIZE + dropped);
+                    buffer.putInt(e.getKey().getTableId());
+                    buffer.putInt(e.getKey().pageNumber());
+                    buffer.putLong(recLsn - dropped);
+                    redoStart = Math.min(redoStart, recLsn);
+                }
+                end = endRecord(cp);
+            }
+        }
+        forceTo(end);
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(startCpOffset);
+        synchronized (this) {
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            if (cp > lastCheckpoint) {
+                lastCheckpoint = cp;
+                lastRedoStart = redoStart;
+                writeCheckpointOffset(cp - dropped);
             }
         }
+        Database.getBufferPool().flushPagesInBackground();
 
+        truncateInBackground();
+    }
 
-        logTruncate();
+    /**
+     * Starts truncating the log in the background, so that a checkpoint
+     * does not wait for the copy. If the previous truncation is still
+     * running, it is returned instead.
+     *
+     * @return the truncation, which can be waited for
+     * @see #logTruncate
+     */
+    public synchronized Future<?> truncateInBackground() {
+        if (truncation != null && !truncation.isDone())
+            return truncation;
+        truncation = truncator.submit(new Runnable() {
+            public void run() {
+                if (stopTruncating)
+                    return;
+                try {
+                    logTruncate();
+                } catch (IOException e) {
+                    // the log keeps its records; the next checkpoint tries again
+                    Debug.log("LogFile: truncation failed: %s", e);
+                }
+            }
+        });
+        return truncation;
+    }
+
+    /**
+     * Stops background truncation, waiting for a truncation that is
+     * running. Used by Database.reset, which stands for a crash.
+     */
+    void stopTruncating() {
+        stopTruncating = true;
+        Future<?> pass;
+        synchronized (this) {
+            pass = truncation;
+        }
+        if (pass == null)
+            return;
+        try {
+            pass.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // nothing more will be truncated
+        }
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption: every record before the last checkpoint, before the
+     * point recovery from it redoes from, and before the BEGIN record of
+     * every active transaction.
+     * <p/>
+     * The records kept are copied to a new file, with their start offsets
+     * and the checkpoint pointer moved down, which then replaces the log.
+     * LSNs do not change. The copy is streamed without holding the
+     * LogFile lock, so records keep being appended meanwhile; only the
+     * records appended during the copy are copied holding it, just before
+     * the new file replaces the log. If a truncation is already running,
+     * this one is skipped.
      */
-    public synchronized void logTruncate() throws IOException {
-        // todo: implement me
+    public void logTruncate() throws IOException {
+        long keep, end;
+        synchronized (this) {
+            if (lastCheckpoint == NO_CHECKPOINT_ID)
+                return;
+            if (truncating) {
+                Debug.log("LogFile: truncation skipped, the previous one is still running");
+                return;
+            }
+            keep = Math.min(lastCheckpoint, lastRedoStart) - dropped;
+            for (Long first : tidToFirstLogRecord.values()) {
+                keep = Math.min(keep, first - dropped);
+            }
+            if (keep <= LONG_SIZE)
+                return;
+            flushBuffer();
+            end = bufferStart;
+            truncating = true;
+        }
+        long shift = keep - LONG_SIZE;
+        File truncated = new File(logFile.getPath() + ".truncated");
+        RandomAccessFile out = new RandomAccessFile(truncated, "rw");
+        boolean replaced = false;
+        try {
+            FileChannel copy = out.getChannel();
+            // the records up to end are not written again; copy them unlocked
+            copy.truncate(0);
+            transfer(channel, keep, end, copy);
+            moveStartOffsets(copy, LONG_SIZE, end - shift, keep, shift);
+            copy.force(true);
+
+            synchronized (this) {
+                flushBuffer();
+                long tail = bufferStart;
+                transfer(channel, end, tail, copy);
+                moveStartOffsets(copy, end - shift, tail - shift, keep, shift);
+                ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+                b.putLong(lastCheckpoint - dropped - shift);
+                b.flip();
+                writeFully(copy, b, 0);
+                copy.force(true);
+                out.close();
+
+                // a group commit leader may be forcing the old file; wait for it
+                forceLock.lock();
+                try {
+                    while (forcing) {
+                        forced.awaitUninterruptibly();
+                    }
+                    if (!truncated.renameTo(logFile))
+                        throw new IOException("LogFile: could not replace " + logFile + " with " + truncated);
+                    replaced = true;
+                    raf.close();
+                    logFileRecovery.close();
+                    raf = new RandomAccessFile(logFile, "rw");
+                    channel = raf.getChannel();
+                    logFileRecovery = new LogFileRecovery(new RandomAccessFile(logFile, "r"));
+                    dropped += shift;
+                    bufferStart = tail - shift;
+                    durableOffset = Math.max(durableOffset, writtenOffset);
+                } finally {
+                    forceLock.unlock();
+                }
+            }
+        } finally {
+            out.close();
+            if (!replaced)
+                truncated.delete();
+            synchronized (this) {
+                truncating = false;
+            }
+        }
+    }
+
+    // Copies the bytes of from between offsets start and end to the end of to
+    private static void transfer(FileChannel from, long start, long end, FileChannel to) throws IOException {
+        long pos = Math.max(to.size(), LONG_SIZE);
+        while (start < end) {
+            long n = from.transferTo(start, Math.min(end - start, TRANSFER_SIZE), to.position(pos));
+            if (n <= 0)
+                throw new IOException("LogFile: log ends before offset " + end);
+            start += n;
+            pos += n;
+        }
+    }
+
+    // Walks back through the records of the truncated log f from offset to
+    // down to offset from, moving their start offsets down by shift
+    private static void moveStartOffsets(FileChannel f, long from, long to, long keep, long shift)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        long pos = to - LONG_SIZE;
+        while (pos >= from) {
+            b.clear();
+            readFully(f, b, pos);
+            long start = b.getLong(0);
+            if (start < keep || start - shift >= pos)
+                throw new IOException("LogFile: bad record start " + start + " at offset " + (pos + shift));
+            b.clear();
+            b.putLong(start - shift);
+            b.flip();
+            writeFully(f, b, pos);
+            long record = start - shift;
+            b.clear().limit(INT_SIZE);
+            readFully(f, b, record);
+            if (b.getInt(0) == LogType.CHECKPOINT_RECORD) {
+                ByteBuffer cp = ByteBuffer.allocate((int) (pos - record));
+                readFully(f, cp, record);
+                moveCheckpointOffsets(cp, 0, keep, shift);
+                cp.clear();
+                writeFully(f, cp, record);
+            }
+            pos = record - LONG_SIZE;
+        }
+    }
+
+    // Moves down the offsets in the checkpoint record at pos in log; those
+    // of an older checkpoint may point before keep, and then point to it
+    private static void moveCheckpointOffsets(ByteBuffer log, int pos, long keep, long shift) {
+        pos += INT_SIZE + LONG_SIZE;
+        int tids = log.getInt(pos);
+        pos += INT_SIZE;
+        for (int i = 0; i < tids; i++, pos += 2 * LONG_SIZE) {
+            log.putLong(pos + LONG_SIZE, Math.max(log.getLong(pos + LONG_SIZE), keep) - shift);
+        }
+        int pages = log.getInt(pos);
+        pos += INT_SIZE;
+        for (int i = 0; i < pages; i++, pos += 2 * INT_SIZE + LONG_SIZE) {
+            log.putLong(pos + 2 * INT_SIZE, Math.max(log.getLong(pos + 2 * INT_SIZE), keep) - shift);
+        }
+    }
+
+    private static void readFully(FileChannel f, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            if (f.read(b, pos + b.position()) < 0)
+                throw new IOException("LogFile: log ends before offset " + (pos + b.limit()));
+        }
+    }
+
+    private static void writeFully(FileChannel f, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            f.write(b, pos + b.position());
+        }
     }
 
     /**
      * Shutdown the logging system, writing out whatever state
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
+     * <p/>
+     * Not synchronized: flushing the pages takes the BufferPool lock,
+     * which must come before this one.
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // a checkpoint no longer writes the pages; write them first
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            Database.getBufferPool().flushPagesInBackground().get();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
+        } catch (ExecutionException e) {
+            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // nothing may use the log once it is closed
+        stopTruncating();
+        synchronized (this) {
+            try {
+                flushBuffer();
+                raf.close();
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
         }
     }
 
@@ -443,14 +915,124 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                raf.seek(raf.length());      // go to end of log file
+                appendAt(raf.length());      // go to end of log file
                 logFileRecovery.recover();
             }
         }
+        // the abort records of the losers
+        force();
+    }
+
+    /**
+     * @return the LSN the next record appended will have
+     */
+    public long getEndLsn() {
+        return appendedOffset;
+    }
+
+    /**
+     * Forces every record appended so far to disk.
+     *
+     * @see #forceTo
+     */
+    public void force() throws IOException {
+        forceTo(appendedOffset);
+    }
+
+    /**
+     * Makes the log durable at least up to offset lsn, e.g. the end of a
+     * commit record. Concurrent callers are forced together (group
+     * commit): one of them, the leader, waits at most the group commit
+     * delay for the group to fill, then forces everything written so far
+     * while the others wait for the durable offset to pass theirs.
+     *
+     * @param lsn the log offset that must be durable
+     */
+    public void forceTo(long lsn) throws IOException {
+        // write out the log buffer first; never while holding forceLock
+        if (writtenOffset < lsn) {
+            synchronized (this) {
+                if (writtenOffset < lsn)
+                    flushBuffer();
+            }
+        }
+        forceLock.lock();
+        try {
+            if (groupCommitSize <= 1) {
+                // every caller forces on its own, one at a time
+                long target = writtenOffset;
+                forceLog();
+                durableOffset = Math.max(durableOffset, target);
+                return;
+            }
+            waiting++;
+            if (waiting >= groupCommitSize)
+                joined.signal();
+            try {
+                while (durableOffset < lsn) {
+                    if (forcing) {
+                        forced.awaitUninterruptibly();
+                        continue;
+                    }
+                    lead();
+                }
+            } finally {
+                waiting--;
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // Forces the log for the group as its leader. Called with forceLock
+    // held; it is released while the log is forced
+    private void lead() throws IOException {
+        forcing = true;
+        try {
+            long delay = TimeUnit.MICROSECONDS.toNanos(groupCommitDelay);
+            while (waiting < groupCommitSize && delay > 0) {
+                try {
+                    delay = joined.awaitNanos(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long target = writtenOffset;
+            forceLock.unlock();
+            try {
+                forceLog();
+            } finally {
+                forceLock.lock();
+            }
+            durableOffset = Math.max(durableOffset, target);
+        } finally {
+            forcing = false;
+            forced.signalAll();
+        }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private void forceLog() throws IOException {
+        channel.force(true);
+        forces.incrementAndGet();
+    }
+
+    /**
+     * Sets the group commit size and delay (in microseconds).
+     *
+     * @see #DEFAULT_GROUP_COMMIT_SIZE
+     * @see #DEFAULT_GROUP_COMMIT_DELAY
+     */
+    public void setGroupCommit(int size, long delay) {
+        groupCommitSize = size;
+        groupCommitDelay = delay;
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk
+     */
+    public long getForceCount() {
+        return forces.get();
     }
 
 }
@@ -27,6 +27,13 @@ class LogFileRecovery {
         this.readOnlyLog = readOnlyLog;
     }
 
+    /**
+     * Closes the read only copy of the log file
+     */
+    public void close() throws IOException {
+        readOnlyLog.close();
+    }
+
     /**
      * Print out a human readable representation of the log
      */
@@ -60,14 +67,26 @@ class LogFileRecovery {
                     afterImg = LogFile.readPageData(readOnlyLog);  // after image
                     System.out.println("<T_" + tid + " CLR pid=" + afterImg.getId() +">");
                     break;
+                case LogType.DELTA_RECORD:
+                    System.out.println("<T_" + tid + " DELTA " + HeapPageDelta.read(readOnlyLog) + ">");
+                    break;
+                case LogType.DELTA_CLR_RECORD:
+                    System.out.println("<T_" + tid + " DELTA_CLR " + HeapPageDelta.read(readOnlyLog) + ">");
+                    break;
                 case LogType.CHECKPOINT_RECORD:
                     int count = readOnlyLog.readInt();
                     Set<Long> tids = new HashSet<Long>();
                     for (int i = 0; i < count; i++) {
                         long nextTid = readOnlyLog.readLong();
+                        readOnlyLog.readLong(); // first record
                         tids.add(nextTid);
                     }
-                    System.out.println("<T_" + tid + " CHECKPOINT " + tids + ">");
+                    int pages = readOnlyLog.readInt();
+                    ArrayList<String> dirty = new ArrayList<String>();
+                    for (int i = 0; i < pages; i++) {
+                        dirty.add(readOnlyLog.readInt() + ":" + readOnlyLog.readInt() + "@" + readOnlyLog.readLong());
+                    }
+                    System.out.println("<T_" + tid + " CHECKPOINT " + tids + " dirty=" + dirty + ">");
                     break;
                 default:
                     throw new RuntimeException("Unexpected type!  Type = " + type);
@@ -105,6 +124,8 @@ class LogFileRecovery {
     	readOnlyLog.seek(readOnlyLog.length()); // undoing so move to end of logfile
         long pointer = readOnlyLog.length()-LogFile.LONG_SIZE;
         while(!tids.isEmpty()) {
+            if(pointer < LogFile.LONG_SIZE)
+                throw new IOException("LogFileRecovery Error: no BEGIN record for " + tids);
             readOnlyLog.seek(pointer);
         	//find start of record, go to start
         	long start = readOnlyLog.readLong();
@@ -139,6 +160,7 @@ class LogFileRecovery {
 
             	
             	case LogType.CLR_RECORD:
+            	case LogType.DELTA_CLR_RECORD:
             		System.out.println("clr");
             		break;
 
@@ -157,6 +179,12 @@ class LogFileRecovery {
             		Database.getLogFile().logCLR(tid, before);
             		
             		break;
+
+            	case LogType.DELTA_RECORD:
+            		HeapPageDelta delta = HeapPageDelta.read(readOnlyLog);
+            		apply(delta, false);
+            		Database.getLogFile().logCLR(tid, delta.inverse());
+            		break;
             		
             	default:
             		System.out.println("Improper read");
@@ -185,11 +213,11 @@ class LogFileRecovery {
     		readOnlyLog.seek(checkpointLoc);
     		readOnlyLog.readInt();//Type
     		readOnlyLog.readLong();//TID
-        	int activeTransactions = readOnlyLog.readInt();//Number of transactions
-        	for(int i=0;i<activeTransactions;i++) {
-        		tids.add(readOnlyLog.readLong());
-        	}
-        	readOnlyLog.readLong();
+    		long redoStart = readCheckpoint(tids);
+    		//The checkpoint is fuzzy: pages dirty then may have changes logged before it
+    		if(redoStart < checkpointLoc) {
+    			readOnlyLog.seek(redoStart);
+    		}
     	}	
     	
     	while(readOnlyLog.getFilePointer() < readOnlyLog.length()) {
@@ -210,7 +238,8 @@ class LogFileRecovery {
         		
         	case LogType.CHECKPOINT_RECORD:
         		System.out.println("checkpoint-recover");
-        		return;
+        		readCheckpoint(new HashSet<Long>());
+        		continue; //read past its start offset already
 
         	case LogType.CLR_RECORD:
         		System.out.println("clr-recover");
@@ -235,6 +264,11 @@ class LogFileRecovery {
         		f.writePage(after);
         		Database.getBufferPool().discardPage(after.getId());
         		break;
+
+        	case LogType.DELTA_RECORD:
+        	case LogType.DELTA_CLR_RECORD:
+        		apply(HeapPageDelta.read(readOnlyLog), true);
+        		break;
         	
         	default:
         		System.out.println("Improper read");
@@ -246,6 +280,8 @@ class LogFileRecovery {
     	readOnlyLog.seek(readOnlyLog.length()); // undoing so move to end of logfile
         long pointer = readOnlyLog.length()-LogFile.LONG_SIZE;
         while(!tids.isEmpty()) {
+            if(pointer < LogFile.LONG_SIZE)
+                throw new IOException("LogFileRecovery Error: no BEGIN record for " + tids);
             readOnlyLog.seek(pointer);
         	//find start of record, go to start
         	long start = readOnlyLog.readLong();
@@ -281,6 +317,7 @@ class LogFileRecovery {
 
             	
             	case LogType.CLR_RECORD:
+            	case LogType.DELTA_CLR_RECORD:
             		System.out.println("clr");
             		break;
 
@@ -299,6 +336,12 @@ class LogFileRecovery {
             		Database.getLogFile().logCLR(tid, after);
             		
             		break;
+
+            	case LogType.DELTA_RECORD:
+            		HeapPageDelta delta = HeapPageDelta.read(readOnlyLog);
+            		apply(delta, false);
+            		Database.getLogFile().logCLR(tid, delta.inverse());
+            		break;
             		
             	default:
             		System.out.println("Improper read");
@@ -309,5 +352,35 @@ class LogFileRecovery {
         }
         print();
     }
-}
 
+    // Redoes or undoes delta on its page on disk, and drops the page from
+    // the buffer pool
+    private static void apply(HeapPageDelta delta, boolean redo) throws IOException {
+        HeapPageId pid = delta.getId();
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data = f.readPage(pid).getPageData();
+        delta.apply(data, redo);
+        f.writePage(new HeapPage(pid, data));
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    // Reads a checkpoint record after its type and tid, through its start
+    // offset, adding its active transactions to tids. Returns the smallest
+    // recovery offset of its dirty pages, or Long.MAX_VALUE if there are none
+    private long readCheckpoint(Set<Long> tids) throws IOException {
+        int activeTransactions = readOnlyLog.readInt();//Number of transactions
+        for(int i=0;i<activeTransactions;i++) {
+            tids.add(readOnlyLog.readLong());
+            readOnlyLog.readLong();//First record
+        }
+        int dirtyPages = readOnlyLog.readInt();
+        long redoStart = Long.MAX_VALUE;
+        for(int i=0;i<dirtyPages;i++) {
+            readOnlyLog.readInt();//Table
+            readOnlyLog.readInt();//Page number
+            redoStart = Math.min(redoStart, readOnlyLog.readLong());
+        }
+        readOnlyLog.readLong();
+        return redoStart;
+    }
+}
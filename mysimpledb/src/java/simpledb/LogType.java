@@ -11,4 +11,6 @@ public class LogType {
     public static final int BEGIN_RECORD = 4;
     public static final int CHECKPOINT_RECORD = 5;
     public static final int CLR_RECORD = 6;
+    public static final int DELTA_RECORD = 7;
+    public static final int DELTA_CLR_RECORD = 8;
 }
@@ -35,6 +35,13 @@ public class LogicalJoinNode {
      */
     public Predicate.Op p;
 
+    /**
+     * The join operator to run this join with, as chosen by the
+     * JoinOptimizer; null leaves the choice to
+     * {@link JoinOptimizer#instantiateJoin}
+     */
+    public JoinOptimizer.JoinMethod method;
+
     public LogicalJoinNode() {
     }
 
@@ -77,6 +84,16 @@ public class LogicalJoinNode {
         return j2;
     }
 
+    /**
+     * Return a copy of this LogicalJoinNode that is to be run with the
+     * given join operator.
+     */
+    public LogicalJoinNode withMethod(JoinOptimizer.JoinMethod m) {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.method = m;
+        return j;
+    }
+
     @Override
     public boolean equals(Object o) {
         LogicalJoinNode j2 = (LogicalJoinNode) o;
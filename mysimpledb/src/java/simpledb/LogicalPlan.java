@@ -23,6 +23,11 @@ import java.util.NoSuchElementException;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /**
+     * The limit of a plan without a LIMIT clause
+     */
+    public static final int NO_LIMIT = -1;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -36,6 +41,7 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = NO_LIMIT;
     private String query;
 //    private Query owner;
 
@@ -235,6 +241,24 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /**
+     * Limits the query to its first n result tuples (a LIMIT clause).
+     *
+     * @param n the number of tuples to return, or NO_LIMIT
+     */
+    public void setLimit(int n) {
+        if (n < 0 && n != NO_LIMIT)
+            throw new IllegalArgumentException("LogicalPlan: limit must not be negative");
+        limit = n;
+    }
+
+    /**
+     * @return the limit set by {@link #setLimit}, or NO_LIMIT
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -500,7 +524,14 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            // only the first limit tuples of the order are needed
+            if (limit != NO_LIMIT)
+                node = new TopN(field, oByAsc, limit, node);
+            else
+                node = new OrderBy(field, oByAsc, node);
+        } else if (limit != NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedHeapFile is a HeapFile that serves page reads from read-only
+ * memory mappings of the file instead of a read system call per page.
+ * It is meant for read-mostly tables that are scanned a lot; writes still
+ * go through the file channel of HeapFile, and the mappings are shared
+ * with the OS page cache so they see them.
+ * <p/>
+ * The file is mapped in segments of at most a fixed number of pages, so
+ * tables of any size can be mapped. Segments are never mapped again: when
+ * the file grows, the pages past the mapped ones are read through the
+ * channel until there are enough of them to be worth a segment of their
+ * own, and are then mapped as one.
+ * <p/>
+ * A page is read from a slice of its segment, copied out in one bulk get:
+ * its tuples are decoded lazily, so its bytes must not change when the
+ * file is written later.
+ *
+ * @see HeapFile
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /**
+     * Default number of pages in a mapped segment (1 GB of 4 KB pages).
+     * Can be overridden with the simpledb.MappedSegmentPages system property.
+     */
+    public static final int DEFAULT_SEGMENT_PAGES = 1 << 18;
+
+    //Fewest unmapped pages at the end of the file that are mapped as a new segment
+    private static final int MIN_MAP_PAGES = 64;
+
+    //A mapping of pages firstPage to firstPage + pages - 1; never modified
+    private static class Segment {
+        final int firstPage;
+        final int pages;
+        final MappedByteBuffer map;
+
+        Segment(int firstPage, int pages, MappedByteBuffer map) {
+            this.firstPage = firstPage;
+            this.pages = pages;
+            this.map = map;
+        }
+    }
+
+    private final int segmentPages;
+    //In page order, each starting where the previous one ends; replaced, never modified
+    private volatile Segment[] segments = new Segment[0];
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        this(f, td, Integer.getInteger("simpledb.MappedSegmentPages", DEFAULT_SEGMENT_PAGES));
+    }
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file,
+     * mapped in segments of at most segmentPages pages.
+     */
+    public MappedHeapFile(File f, TupleDesc td, int segmentPages) {
+        super(f, td);
+        this.segmentPages = Math.max(1, Math.min(segmentPages, Integer.MAX_VALUE / BufferPool.PAGE_SIZE));
+    }
+
+    /**
+     * @return the number of pages mapped, from the start of the file
+     */
+    int mappedPages() {
+        Segment[] s = segments;
+        return s.length == 0 ? 0 : s[s.length - 1].firstPage + s[s.length - 1].pages;
+    }
+
+    // The segment holding page pgNo, or null if it is not mapped
+    private Segment segment(int pgNo) {
+        Segment[] s = segments;
+        int lo = 0;
+        int hi = s.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pgNo < s[mid].firstPage) {
+                hi = mid - 1;
+            } else if (pgNo >= s[mid].firstPage + s[mid].pages) {
+                lo = mid + 1;
+            } else {
+                return s[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps the whole pages of the file past the mapped ones, the first
+     * time or once there are enough of them.
+     */
+    private synchronized void map() throws IOException {
+        FileChannel ch = channel();
+        int filePages = (int) (ch.size() / BufferPool.PAGE_SIZE);
+        int mapped = mappedPages();
+        if (filePages <= mapped || (mapped > 0 && filePages - mapped < Math.min(MIN_MAP_PAGES, segmentPages))) {
+            return;
+        }
+        Segment[] s = segments;
+        int n = s.length + (filePages - mapped + segmentPages - 1) / segmentPages;
+        Segment[] grown = new Segment[n];
+        System.arraycopy(s, 0, grown, 0, s.length);
+        for (int i = s.length; i < n; i++) {
+            int pages = Math.min(segmentPages, filePages - mapped);
+            grown[i] = new Segment(mapped, pages, ch.map(FileChannel.MapMode.READ_ONLY,
+                    (long) mapped * BufferPool.PAGE_SIZE, (long) pages * BufferPool.PAGE_SIZE));
+            mapped += pages;
+        }
+        segments = grown;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pgNo = pid.pageNumber();
+        try {
+            Segment s = segment(pgNo);
+            if (s == null) {
+                map();
+                s = segment(pgNo);
+            }
+            if (s == null) {
+                //Not mapped yet; let HeapFile deal with it
+                return super.readPage(pid);
+            }
+            //A duplicate has its own position and limit, so readers do not interfere
+            ByteBuffer page = s.map.duplicate();
+            page.position((pgNo - s.firstPage) * BufferPool.PAGE_SIZE);
+            page.limit(page.position() + BufferPool.PAGE_SIZE);
+            return new HeapPage((HeapPageId) pid, page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -1,13 +1,30 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p/>
+ * Input that fits in the memory budget is sorted in memory. Larger input is
+ * sorted externally: each budget-full of tuples is sorted and written to a
+ * temporary file as a run, and the runs (plus the last, in-memory one) are
+ * merged as the output is read. If there are more runs than can be merged
+ * at once, they are first merged into fewer, longer runs in extra passes.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default memory budget for sorting, in bytes. Can be overridden with
+     * the simpledb.SortMemory system property.
+     */
+    public static final long DEFAULT_MEMORY = 64L << 20;
+
+    //Rough heap cost of a buffered tuple beyond its serialized size
+    private static final int TUPLE_OVERHEAD = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -15,6 +32,13 @@ public class OrderBy extends Operator {
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private final long memory;
+
+    //Sorted runs on disk, in input order, and the merge of them with childTups
+    private transient ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private transient PriorityQueue<Head> merge = null;
+    private transient int runCount = 0;
+    private transient long spillBytes = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -24,11 +48,22 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, Long.getLong("simpledb.SortMemory", DEFAULT_MEMORY));
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget.
+     *
+     * @param memory bytes of tuples to sort in memory before writing a run
+     *               to disk
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, long memory) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memory = memory;
     }
 
     public boolean isASC() {
@@ -47,24 +82,142 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /**
+     * @return the number of sorted runs written to disk by the last open,
+     * including runs written while merging; 0 if the sort fit in memory
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return the number of bytes written to disk by the last open
+     */
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        deleteRuns();
+        childTups = new ArrayList<Tuple>();
+        runCount = 0;
+        spillBytes = 0;
+        Comparator<Tuple> order = new TupleComparator(orderByField, asc);
+        long tupleMemory = td.getSize() + TUPLE_OVERHEAD;
+        long used = 0;
+        try {
+            // load tuples a budget-full at a time, sort them, and spill all
+            // but the last
+            while (child.hasNext()) {
+                if (used + tupleMemory > memory && !childTups.isEmpty()) {
+                    Collections.sort(childTups, order);
+                    runs.add(writeRun(childTups.iterator()));
+                    childTups = new ArrayList<Tuple>();
+                    used = 0;
+                }
+                childTups.add(child.next());
+                used += tupleMemory;
+            }
+            Collections.sort(childTups, order);
+
+            // each merged run is read through its own buffer
+            int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memory / SpillFile.BUFFER_SIZE));
+            while (runs.size() >= fanIn) {
+                // one pass: merge consecutive groups, keeping runs in input order
+                ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+                for (int i = 0; i < runs.size(); i += fanIn) {
+                    List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    merged.add(writeRun(new MergeIterator(heads(group, null))));
+                    for (SpillFile f : group) {
+                        f.delete();
+                    }
+                }
+                runs = merged;
+            }
+        } catch (IOException e) {
+            throw new DbException("OrderBy: could not write sorted runs: " + e);
+        }
+        if (runCount > 0)
+            Debug.log("OrderBy on %s: %d runs, %d bytes spilled", orderByFieldName, runCount, spillBytes);
         super.open();
+        rewind();
+    }
+
+    private SpillFile writeRun(Iterator<Tuple> sorted) throws IOException {
+        SpillFile run = new SpillFile(td);
+        while (sorted.hasNext()) {
+            run.add(sorted.next());
+        }
+        run.finish();
+        runCount++;
+        spillBytes += run.bytes();
+        return run;
     }
 
     public void close() {
         super.close();
+        child.close();
         it = null;
+        merge = null;
+        deleteRuns();
+        childTups = new ArrayList<Tuple>();
+    }
+
+    private void deleteRuns() {
+        if (merge != null) {
+            for (Head h : merge) {
+                h.close();
+            }
+            merge = null;
+        }
+        for (SpillFile f : runs) {
+            f.delete();
+        }
+        runs = new ArrayList<SpillFile>();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        if (merge != null) {
+            for (Head h : merge) {
+                h.close();
+            }
+        }
+        try {
+            merge = heads(runs, childTups.iterator());
+        } catch (IOException e) {
+            throw new DbException("OrderBy: could not read sorted runs: " + e);
+        }
+        it = new MergeIterator(merge);
+    }
+
+    // The first tuple of each run; ties go to the older run, keeping the
+    // sort stable
+    private PriorityQueue<Head> heads(List<SpillFile> files, Iterator<Tuple> last) throws IOException {
+        PriorityQueue<Head> heads = new PriorityQueue<Head>(files.size() + 1,
+                new HeadComparator(new TupleComparator(orderByField, asc)));
+        for (int i = 0; i < files.size(); i++) {
+            Head h = new Head(i, files.get(i).reader(), null);
+            if (h.advance())
+                heads.add(h);
+            else
+                h.close();
+        }
+        if (last != null) {
+            Head h = new Head(files.size(), null, last);
+            if (h.advance())
+                heads.add(h);
+        }
+        return heads;
     }
 
     /**
@@ -76,42 +229,107 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        try {
+            if (it != null && it.hasNext()) {
+                return it.next();
+            } else
+                return null;
+        } catch (MergeException e) {
+            throw new DbException("OrderBy: could not read sorted runs: " + e.getCause());
+        }
     }
 
-    @Override
-    public DbIterator[] getChildren() {
-        return new DbIterator[]{this.child};
+    // The current tuple of a run being merged: a file, or the in-memory tuples
+    private static class Head {
+        final int run;
+        final SpillFile.Reader reader;
+        final Iterator<Tuple> tuples;
+        Tuple t;
+
+        Head(int run, SpillFile.Reader reader, Iterator<Tuple> tuples) {
+            this.run = run;
+            this.reader = reader;
+            this.tuples = tuples;
+        }
+
+        boolean advance() throws IOException {
+            if (reader != null) {
+                t = reader.hasNext() ? reader.next() : null;
+            } else {
+                t = tuples.hasNext() ? tuples.next() : null;
+            }
+            return t != null;
+        }
+
+        void close() {
+            if (reader != null)
+                reader.close();
+        }
     }
 
-    @Override
-    public void setChildren(DbIterator[] children) {
-        this.child = children[0];
+    private static class HeadComparator implements Comparator<Head> {
+        private final Comparator<Tuple> order;
+
+        HeadComparator(Comparator<Tuple> order) {
+            this.order = order;
+        }
+
+        public int compare(Head a, Head b) {
+            int c = order.compare(a.t, b.t);
+            return c != 0 ? c : a.run - b.run;
+        }
     }
 
-}
+    // Carries an IOException out of MergeIterator.next
+    private static class MergeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MergeException(IOException cause) {
+            super(cause);
+        }
+    }
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    // Takes the smallest head, then puts its run back with its next tuple
+    private static class MergeIterator implements Iterator<Tuple> {
+        private final PriorityQueue<Head> heads;
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        MergeIterator(PriorityQueue<Head> heads) {
+            this.heads = heads;
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Tuple next() {
+            Head h = heads.poll();
+            if (h == null)
+                throw new NoSuchElementException();
+            Tuple t = h.t;
+            try {
+                if (h.advance())
+                    heads.add(h);
+                else
+                    h.close();
+            } catch (IOException e) {
+                throw new MergeException(e);
+            }
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
     }
 
 }
@@ -46,6 +46,22 @@ public interface Page {
 
     public byte[] getPageData();
 
+    /**
+     * Writes the same bytes as getPageData() into a caller-supplied buffer,
+     * starting at its position, so that flushing and logging can reuse one
+     * buffer instead of allocating an array per call.
+     *
+     * @param buf a buffer with at least BufferPool.getPageSize() bytes remaining
+     */
+    public void getPageData(java.nio.ByteBuffer buf);
+
+    /**
+     * Returns a number that changes whenever the contents of this page
+     * change, so that a caller can tell whether the page changed since it
+     * last looked without serializing it.
+     */
+    public long getVersion();
+
     /**
      * Provide a representation of this page before any modifications were made
      * to it.  Used by recovery.
@@ -54,7 +70,7 @@ public interface Page {
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content becomes the before image.
      */
     public void setBeforeImage();
 }
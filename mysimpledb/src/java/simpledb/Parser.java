@@ -274,12 +274,85 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * A statement with the LIMIT clause that ended it split off, since Zql
+     * cannot parse LIMIT.
+     */
+    static class LimitedStatement {
+        final String sql;
+        final int limit;
+
+        LimitedStatement(String sql, int limit) {
+            this.sql = sql;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Splits the LIMIT clause off the first statement in s, if its last two
+     * words are LIMIT and a count. Words inside quoted strings do not count.
+     *
+     * @return s without the LIMIT clause, and its count or
+     * LogicalPlan.NO_LIMIT
+     */
+    static LimitedStatement splitLimit(String s) throws simpledb.ParsingException {
+        // start and end of the last two words outside quotes before the first ';'
+        int[] last = {-1, -1};
+        int[] prev = {-1, -1};
+        char quote = 0;
+        int end = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                prev = last;
+                last = new int[]{-1, -1};
+            } else if (c == ';') {
+                end = i;
+                break;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+                if (last[1] != i) {
+                    prev = last;
+                    last = new int[]{i, i};
+                }
+                last[1] = i + 1;
+            } else if (!Character.isWhitespace(c)) {
+                prev = last;
+                last = new int[]{-1, -1};
+            }
+        }
+        if (prev[0] < 0 || last[0] < 0 || !s.substring(prev[0], prev[1]).equalsIgnoreCase("limit"))
+            return new LimitedStatement(s, LogicalPlan.NO_LIMIT);
+        String count = s.substring(last[0], last[1]);
+        int limit;
+        try {
+            limit = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT " + count);
+        }
+        return new LimitedStatement(s.substring(0, prev[0]) + s.substring(end), limit);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, LogicalPlan.NO_LIMIT);
+    }
+
+    /**
+     * @param limit the count of the LIMIT clause split off the statement,
+     *              or LogicalPlan.NO_LIMIT
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -469,12 +542,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        LimitedStatement ls = splitLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(ls.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(ls.limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -507,8 +582,11 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            LimitedStatement ls = splitLimit(readAll(is));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(ls.sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (ls.limit != LogicalPlan.NO_LIMIT && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -529,7 +607,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), ls.limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -583,10 +661,20 @@ public class Parser {
         }
     }
 
+    private static String readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "insert", "delete", "values", "into", "limit"};
 
     public static void main(String argv[]) throws IOException {
 
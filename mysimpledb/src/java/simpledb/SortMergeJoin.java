@@ -0,0 +1,338 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children sorted ascending on their
+ * join fields. A child that is not already sorted that way (an OrderBy on
+ * the join field) is sorted with an OrderBy first.
+ * <p/>
+ * For an equality predicate the two inputs are merged, buffering one run of
+ * equal inner keys at a time, so duplicate keys on both sides produce their
+ * full cross product. For the range predicates (&lt;, &lt;=, &gt;, &gt;=)
+ * the matches of each tuple on one side form a prefix of the other sorted
+ * side, and that prefix only grows as the first side goes on. So the other
+ * side is read once, and the prefix read so far is buffered and joined with
+ * each tuple; past the memory budget, the buffered prefix is written to
+ * temporary files.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default memory budget for the buffered prefix of a range join, in
+     * bytes. Can be overridden with the simpledb.MergeJoinMemory system
+     * property.
+     */
+    public static final long DEFAULT_MEMORY = 64L << 20;
+
+    //Rough heap cost of a buffered tuple beyond its serialized size
+    private static final int TUPLE_OVERHEAD = 64;
+
+    private JoinPredicate p;
+    private DbIterator[] children;
+    private final long memory;
+
+    private transient TupleDesc td = null;
+    //children[i], or an OrderBy over it
+    private transient DbIterator[] sorted = null;
+
+    //Equality: the current outer tuple, the inner run matching its key and
+    //the next run position, and the first inner tuple past the run
+    private transient Tuple t1 = null;
+    private transient Field runKey = null;
+    private transient ArrayList<Tuple> run = new ArrayList<Tuple>();
+    private transient int pos = 0;
+    private transient Tuple peek = null;
+
+    //Range predicates: the side whose tuples each pick a prefix of the
+    //other side, and its current tuple
+    private transient int driver;
+    private transient Tuple current = null;
+    //The prefix of the other side read so far: spilled files, then the rest
+    //in memory; the first tuple past it; and how far the current tuple has
+    //been joined with it
+    private transient ArrayList<SpillFile> spilled = new ArrayList<SpillFile>();
+    private transient ArrayList<Tuple> prefix = new ArrayList<Tuple>();
+    private transient long prefixMemory = 0;
+    private transient Tuple pending = null;
+    private transient int spillPos = 0;
+    private transient SpillFile.Reader reader = null;
+    private transient int prefixPos = 0;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children; any of the
+     *               comparisons except NOT_EQUALS and LIKE
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, Long.getLong("simpledb.MergeJoinMemory", DEFAULT_MEMORY));
+    }
+
+    /**
+     * Creates a sort-merge join with an explicit memory budget.
+     *
+     * @param memory bytes of tuples a range join buffers in memory before
+     *               writing them to disk
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memory) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("SortMergeJoin: unsupported predicate " + p.getOperator());
+        this.p = p;
+        children = new DbIterator[2];
+        this.children[0] = child1;
+        this.children[1] = child2;
+        this.memory = memory;
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate join predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if child already returns its tuples in ascending order
+     * of field
+     */
+    static boolean isSorted(DbIterator child, int field) {
+        if (!(child instanceof OrderBy))
+            return false;
+        OrderBy o = (OrderBy) child;
+        return o.isASC() && o.getOrderByField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return children[0].getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return children[1].getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /**
+     * @see simpledb.TupleDesc#merge(TupleDesc, TupleDesc)
+     */
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        int[] fields = {p.getField1(), p.getField2()};
+        sorted = new DbIterator[2];
+        for (int i = 0; i < 2; i++) {
+            sorted[i] = isSorted(children[i], fields[i]) ?
+                    children[i] : new OrderBy(fields[i], true, children[i]);
+            sorted[i].open();
+        }
+        td = getTupleDesc();
+        Predicate.Op op = p.getOperator();
+        driver = op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ ? 1 : 0;
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        if (sorted != null) {
+            for (int i = 0; i < 2; i++) {
+                sorted[i].close();
+            }
+            sorted = null;
+        }
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted[0].rewind();
+        sorted[1].rewind();
+        reset();
+    }
+
+    private void reset() {
+        t1 = null;
+        runKey = null;
+        run = new ArrayList<Tuple>();
+        pos = 0;
+        peek = null;
+        current = null;
+        if (reader != null)
+            reader.close();
+        reader = null;
+        for (SpillFile f : spilled) {
+            f.delete();
+        }
+        spilled = new ArrayList<SpillFile>();
+        prefix = new ArrayList<Tuple>();
+        prefixMemory = 0;
+        pending = null;
+        spillPos = 0;
+        prefixPos = 0;
+    }
+
+    private Field key(Tuple t, int side) {
+        return t.getField(side == 0 ? p.getField1() : p.getField2());
+    }
+
+    /**
+     * @return a negative number, zero, or a positive number as a is less
+     * than, equal to, or greater than b
+     */
+    static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        // Field.compare(op, v) tests v op this
+        return b.compare(Predicate.Op.GREATER_THAN, a) ? 1 : -1;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Results come grouped by the tuples of one side, in key
+     * order.
+     * <p/>
+     * Note that the tuples returned from this particular implementation of Join
+     * are simply the concatenation of joining tuples from the left and right
+     * relation. Therefore, if an equality predicate is used there will be two
+     * copies of the join attribute in the results.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return nextEqual();
+        return nextInRange();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && pos < run.size())
+                return merge(t1, run.get(pos++));
+            if (!sorted[0].hasNext())
+                return null;
+            t1 = sorted[0].next();
+            pos = 0;
+            Field k = key(t1, 0);
+            // a duplicate outer key joins the same run again
+            if (runKey != null && compare(k, runKey) == 0)
+                continue;
+            run.clear();
+            runKey = k;
+            while (peek != null || sorted[1].hasNext()) {
+                if (peek == null)
+                    peek = sorted[1].next();
+                int c = compare(key(peek, 1), k);
+                if (c > 0)
+                    break;
+                if (c == 0)
+                    run.add(peek);
+                peek = null;
+            }
+        }
+    }
+
+    private Tuple nextInRange() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (current != null) {
+                    Tuple t = nextInPrefix();
+                    if (t != null)
+                        return driver == 0 ? merge(current, t) : merge(t, current);
+                }
+                // joined with the whole prefix; the next driver tuple extends it
+                if (!sorted[driver].hasNext())
+                    return null;
+                current = sorted[driver].next();
+                extendPrefix();
+                spillPos = 0;
+                prefixPos = 0;
+            }
+        } catch (IOException e) {
+            throw new DbException("SortMergeJoin: could not buffer the join range: " + e);
+        }
+    }
+
+    //Reads the other side up to the first tuple that does not match current
+    private void extendPrefix() throws TransactionAbortedException, DbException, IOException {
+        int other = 1 - driver;
+        boolean strict = p.getOperator() == Predicate.Op.GREATER_THAN
+                || p.getOperator() == Predicate.Op.LESS_THAN;
+        long tupleMemory = sorted[other].getTupleDesc().getSize() + TUPLE_OVERHEAD;
+        while (pending != null || sorted[other].hasNext()) {
+            if (pending == null)
+                pending = sorted[other].next();
+            int c = compare(key(pending, other), key(current, driver));
+            if (c > 0 || (c == 0 && strict))
+                break;
+            if (prefixMemory + tupleMemory > memory && !prefix.isEmpty()) {
+                SpillFile f = new SpillFile(sorted[other].getTupleDesc());
+                for (Tuple t : prefix) {
+                    f.add(t);
+                }
+                f.finish();
+                spilled.add(f);
+                prefix = new ArrayList<Tuple>();
+                prefixMemory = 0;
+            }
+            prefix.add(pending);
+            prefixMemory += tupleMemory;
+            pending = null;
+        }
+    }
+
+    //The next tuple of the prefix for current, or null once it is joined with all of it
+    private Tuple nextInPrefix() throws IOException {
+        while (spillPos < spilled.size()) {
+            if (reader == null)
+                reader = spilled.get(spillPos).reader();
+            if (reader.hasNext())
+                return reader.next();
+            reader.close();
+            reader = null;
+            spillPos++;
+        }
+        return prefixPos < prefix.size() ? prefix.get(prefixPos++) : null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple ret = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            ret.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            ret.setField(i + n1, t2.getField(i));
+        }
+        return ret;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
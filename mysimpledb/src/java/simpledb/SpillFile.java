@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples, for operators whose input does not fit in
+ * memory. Tuples are appended in the fixed-size format of a heap page slot
+ * (see Field.serialize) and read back in the same order, any number of
+ * times, once writing is finished. The file is removed by {@link #delete}
+ * or, failing that, when the JVM exits.
+ */
+class SpillFile {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        file = File.createTempFile("simpledb", ".spill");
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Appends t. Its record id is not kept.
+     */
+    public void add(Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+        size++;
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes in the file
+     */
+    public long bytes() {
+        return (long) size * td.getSize();
+    }
+
+    /**
+     * Finishes writing, if that is not done yet, and returns a reader over
+     * the tuples from the start of the file.
+     */
+    public Reader reader() throws IOException {
+        finish();
+        return new Reader();
+    }
+
+    /**
+     * Finishes writing; no tuples can be added afterwards.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            //the file is going away anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads a SpillFile back in blocks; tuples are decoded lazily out of
+     * the block they were read in.
+     */
+    public class Reader {
+        private final InputStream in;
+        private final int tupleSize = td.getSize();
+        private final int perBlock = Math.max(1, BUFFER_SIZE / tupleSize);
+        private byte[] block;
+        private int inBlock = 0;
+        private int pos = 0;
+        private int left = size;
+
+        private Reader() throws IOException {
+            in = new FileInputStream(file);
+        }
+
+        public boolean hasNext() {
+            return pos < inBlock || left > 0;
+        }
+
+        public Tuple next() throws IOException {
+            if (pos == inBlock) {
+                if (left == 0)
+                    throw new NoSuchElementException();
+                inBlock = Math.min(left, perBlock);
+                block = new byte[inBlock * tupleSize];
+                readFully(block);
+                left -= inBlock;
+                pos = 0;
+            }
+            return new Tuple(td, block, tupleSize * pos++);
+        }
+
+        private void readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                int n = in.read(b, off, b.length - off);
+                if (n < 0)
+                    throw new EOFException("SpillFile: " + file + " is truncated");
+                off += n;
+            }
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                //nothing was written through it
+            }
+        }
+    }
+}
@@ -1,49 +1,64 @@
 package simpledb;
+
 /**
-* Knows how to compute some aggregate over a set of StringFields.
-*/
+ * Knows how to compute some aggregate over a set of StringFields.
+ */
 public class StringAggregator implements Aggregator {
-private static final long serialVersionUID = 1L;
-private int gbfield;
-private Type gbfieldtype;
-private int afield;
-private Op what;
-private Tuple results;
-/**
-* Aggregate constructor
-*
-* @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
-* @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
-* @param afield the 0-based index of the aggregate field in the tuple
-* @param what aggregation operator to use -- only supports COUNT
-* @throws IllegalArgumentException if what != COUNT
-*/
-public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-this.gbfield = gbfield;
-this.gbfieldtype = gbfieldtype;
-this.afield = afield;
-if(what != Op.COUNT)
-throw new IllegalArgumentException("StringAggregator Error: Only Count is supported.");
-this.what = what;
-}
-/**
-* Merge a new tuple into the aggregate, grouping as indicated in the constructor
-*
-* @param tup the Tuple containing an aggregate field and a group-by field
-*/
-public void mergeTupleIntoGroup(Tuple tup) {
-// some code goes here
-}
-/**
-* Create a DbIterator over group aggregate results.
-*
-* @return a DbIterator whose tuples are the pair (groupVal,
-* aggregateVal) if using group, or a single (aggregateVal) if no
-* grouping. The aggregateVal is determined by the type of
-* aggregate specified in the constructor.
-*/
-public DbIterator iterator() {
-// some code goes here
-throw new UnsupportedOperationException("please implement me for lab3"); // cosc460
+
+    private static final long serialVersionUID = 1L;
+
+    private int gbfield;
+    private Type gbfieldtype;
+    private int afield;
+    private Op what;
+    // a count never looks at the values, so the groups are kept as for ints
+    private IntegerAggregator counts;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield     the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
+     * @param afield      the 0-based index of the aggregate field in the tuple
+     * @param what        aggregation operator to use -- only supports COUNT
+     * @throws IllegalArgumentException if what != COUNT
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afield = afield;
+        if (what != Op.COUNT)
+            throw new IllegalArgumentException("StringAggregator Error: Only Count is supported.");
+        this.what = what;
+        this.counts = new IntegerAggregator(gbfield, gbfieldtype, afield, what);
+    }
+
+    /**
+     * @return the aggregator that holds the group counts
+     */
+    IntegerAggregator counts() {
+        return counts;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the constructor
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        counts.mergeTupleIntoGroup(tup);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the pair (groupVal,
+     * aggregateVal) if using group, or a single (aggregateVal) if no
+     * grouping. The aggregateVal is determined by the type of
+     * aggregate specified in the constructor.
+     */
+    public DbIterator iterator() {
+        return counts.iterator();
+    }
+
 }
-}
\ No newline at end of file
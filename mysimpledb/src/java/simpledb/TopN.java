@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements an ORDER BY followed by a LIMIT. It
+ * reads its whole child but keeps only the best n tuples seen so far, in a
+ * bounded heap, instead of sorting everything. Equal keys come out in
+ * input order, as from {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final int orderByField;
+    private final boolean asc;
+    private final int limit;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param limit        the number of tuples to return at most
+     * @param child        the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("TopN: limit must not be negative");
+        this.child = child;
+        this.orderByField = orderbyField;
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    // A tuple with its input position, which breaks ties
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> order = new TupleComparator(orderByField, asc);
+        Comparator<Entry> byOrder = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = order.compare(a.t, b.t);
+                return c != 0 ? c : (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+            }
+        };
+        // the heap's head is the worst of the tuples kept
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(limit, 1024)),
+                Collections.reverseOrder(byOrder));
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (byOrder.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        Entry[] sorted = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(sorted, byOrder);
+        top = new ArrayList<Tuple>(sorted.length);
+        for (Entry e : sorted) {
+            top.add(e.t);
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = new ArrayList<Tuple>();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     * tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -16,6 +16,9 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private Field[] fields;
     private RecordId rid;
+    //Serialized tuple whose fields are decoded on first access, see Tuple(TupleDesc, byte[], int)
+    private transient byte[] source;
+    private transient int offset;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -32,6 +35,19 @@ public class Tuple implements Serializable {
     	this.fields = new Field[tupleDesc.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are stored serialized in source, starting
+     * at offset, as written by Field.serialize. A field is only decoded
+     * when it is first read, so reading a few columns of a wide tuple does
+     * not decode the others. source must not change while the tuple has
+     * undecoded fields.
+     */
+    Tuple(TupleDesc td, byte[] source, int offset) {
+    	this(td);
+    	this.source = source;
+    	this.offset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -76,7 +92,24 @@ public class Tuple implements Serializable {
      * @return the value of the ith field, or null if it has not been set.
      */
     public Field getField(int i) {
-        return this.fields[i];
+        Field f = this.fields[i];
+        if (f == null && source != null) {
+        	try {
+        		f = tupleDesc.getFieldType(i).parse(source, offset + tupleDesc.getOffset(i));
+        	} catch (java.text.ParseException e) {
+        		throw new RuntimeException("Tuple Error: could not decode field " + i, e);
+        	}
+        	fields[i] = f;
+        }
+        return f;
+    }
+
+    //Decodes every field, so nothing depends on the source bytes any more
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+    	for (int i=0;i<fields.length;i++) {
+    		getField(i);
+    	}
+    	out.defaultWriteObject();
     }
 
     /**
@@ -90,7 +123,7 @@ public class Tuple implements Serializable {
     public String toString() {
         String ret = "";
         for (int i=0;i<fields.length;i++) {
-        	ret+=fields[i];
+        	ret+=getField(i);
         	if(i!= fields.length-1)
         		ret+="\t";
         }
@@ -143,6 +143,19 @@ public class TupleDesc implements Serializable {
     	return bytes;
     }
 
+    /**
+     * @param i index of a field. It must be a valid index.
+     * @return The offset (in bytes) of the ith field within a serialized
+     * tuple of this TupleDesc.
+     */
+    public int getOffset(int i) {
+    	int bytes = 0;
+    	for (int j=0;j<i;j++) {
+    		bytes += tdDesc[j].fieldType.getLen();
+    	}
+    	return bytes;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -24,6 +24,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] buf, int off) throws ParseException {
+            return new IntField(readInt(buf, off));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +47,14 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] buf, int off) throws ParseException {
+            int strLen = readInt(buf, off);
+            if (strLen < 0 || strLen > STRING_LEN)
+                throw new ParseException("couldn't parse", off);
+            return new StringField(new String(buf, off + 4, strLen), STRING_LEN);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -60,4 +73,20 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * @param buf the bytes to decode from, in the format written by
+     *            Field.serialize
+     * @param off the offset of the field in buf
+     * @return a Field object of the same type as this object with the
+     * contents stored at off.
+     * @throws ParseException if the bytes are not a valid field of this type.
+     */
+    public abstract Field parse(byte[] buf, int off) throws ParseException;
+
+    //Big-endian, like DataInputStream.readInt
+    private static int readInt(byte[] buf, int off) {
+        return (buf[off] & 0xff) << 24 | (buf[off + 1] & 0xff) << 16
+                | (buf[off + 2] & 0xff) << 8 | (buf[off + 3] & 0xff);
+    }
+
 }
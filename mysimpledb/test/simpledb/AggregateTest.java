@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AggregateTest extends SimpleDbTestBase {
+
+    int[] data;
+    Object[] strings;
+
+    /**
+     * Initialize each unit test: 5000 three-column tuples with a group key
+     * from 2000 values, a value, and a small positive count (for SC_AVG);
+     * and the same keys with string values
+     */
+    @Before
+    public void setUp() {
+        Random rand = new Random(460);
+        data = new int[3 * 5000];
+        strings = new Object[2 * 5000];
+        for (int i = 0; i < 5000; i++) {
+            data[3 * i] = rand.nextInt(2000) - 1000;
+            data[3 * i + 1] = rand.nextInt(1000);
+            data[3 * i + 2] = 1 + rand.nextInt(5);
+            strings[2 * i] = data[3 * i];
+            strings[2 * i + 1] = "s" + data[3 * i + 1];
+        }
+    }
+
+    /**
+     * Unit test for Aggregate: with a budget of a few dozen groups, every
+     * operator gives the same groups and values as in memory
+     */
+    @Test
+    public void spillMatchesInMemory() throws Exception {
+        for (Aggregator.Op op : Aggregator.Op.values()) {
+            ArrayList<String> expected = read(new Aggregate(TestUtil.createTupleList(3, data), 1, 0, op));
+            assertTrue(expected.size() > 1500);
+            Aggregate spilled = new Aggregate(TestUtil.createTupleList(3, data), 1, 0, op, 32 * (64 + 4));
+            assertEquals(expected, read(spilled));
+            // the 16 first-pass partitions split again
+            assertTrue(spilled.partitionsWritten > 16);
+            spilled.close();
+        }
+    }
+
+    /**
+     * Unit test for Aggregate without grouping, and COUNT over strings
+     * grouped by int, spilled or not
+     */
+    @Test
+    public void ungroupedAndStrings() throws Exception {
+        long[] budgets = {Aggregate.DEFAULT_MEMORY, 32 * (64 + 4)};
+        for (long memory : budgets) {
+            ArrayList<String> sum = read(new Aggregate(TestUtil.createTupleList(3, data), 1,
+                    Aggregator.NO_GROUPING, Aggregator.Op.SUM, memory));
+            int total = 0;
+            for (int i = 1; i < data.length; i += 3) {
+                total += data[i];
+            }
+            assertEquals(Collections.singletonList(Integer.toString(total)), sum);
+
+            ArrayList<String> counts = read(new Aggregate(TestUtil.createTupleList(2, strings), 1, 0,
+                    Aggregator.Op.COUNT, memory));
+            int n = 0;
+            for (String t : counts) {
+                n += Integer.parseInt(t.split("\t")[1]);
+            }
+            assertEquals(5000, n);
+        }
+    }
+
+    /**
+     * Unit test for Aggregate.rewind(), in memory and spilled
+     */
+    @Test
+    public void rewind() throws Exception {
+        long[] budgets = {Aggregate.DEFAULT_MEMORY, 32 * (64 + 4)};
+        for (long memory : budgets) {
+            Aggregate op = new Aggregate(TestUtil.createTupleList(3, data), 1, 0, Aggregator.Op.AVG, memory);
+            ArrayList<String> first = read(op);
+            op.rewind();
+            ArrayList<String> again = new ArrayList<String>();
+            while (op.hasNext()) {
+                again.add(op.next().toString());
+            }
+            Collections.sort(again);
+            assertEquals(first, again);
+            op.close();
+        }
+    }
+
+    /**
+     * Unit test for Aggregate.getTupleDesc()
+     */
+    @Test
+    public void tupleDesc() throws Exception {
+        DbIterator child = TestUtil.createTupleList(3, data);
+        TupleDesc td = new Aggregate(child, 1, 0, Aggregator.Op.SUM).getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("sum (" + child.getTupleDesc().getFieldName(1) + ")", td.getFieldName(1));
+        assertEquals(1, new Aggregate(child, 1, Aggregator.NO_GROUPING, Aggregator.Op.MIN)
+                .getTupleDesc().numFields());
+        assertEquals(3, new Aggregate(child, 1, 0, Aggregator.Op.SUM_COUNT).getTupleDesc().numFields());
+    }
+
+    // Opens op and returns its tuples as strings, sorted
+    private static ArrayList<String> read(Aggregate op) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            ret.add(op.next().toString());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AggregateTest.class);
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures GROUP BY throughput of IntegerAggregator on INT and STRING
+ * group keys at several group counts, against a HashMap keyed by the
+ * key's string form (how IntegerAggregator used to group).
+ * <p/>
+ * Usage: java simpledb.AggregationBenchmark [rows]
+ */
+public class AggregationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int[] cardinalities = {100, 100000, rows / 2};
+        Type[] kinds = {Type.INT_TYPE, Type.STRING_TYPE};
+
+        System.out.println("key\tgroups\tIntegerAggregator (Mrows/s)\tstring HashMap (Mrows/s)");
+        for (Type kind : kinds) {
+            for (int groups : cardinalities) {
+                if (kind == Type.STRING_TYPE && groups > 100000)
+                    continue;
+                Field[] keys = keys(kind, groups);
+                //warm up, then keep the best of three alternating runs
+                run(kind, keys, rows / 10, false);
+                run(kind, keys, rows / 10, true);
+                double fast = 0, baseline = 0;
+                for (int i = 0; i < 3; i++) {
+                    fast = Math.max(fast, run(kind, keys, rows, false));
+                    baseline = Math.max(baseline, run(kind, keys, rows, true));
+                }
+                System.out.printf("%s\t%d\t%.1f\t%.1f%n", kind, groups, fast, baseline);
+            }
+        }
+    }
+
+    private static Field[] keys(Type kind, int groups) {
+        Field[] keys = new Field[groups];
+        for (int i = 0; i < groups; i++) {
+            keys[i] = kind == Type.INT_TYPE ? new IntField(i * 7919)
+                    : new StringField("key" + i, Type.STRING_LEN);
+        }
+        return keys;
+    }
+
+    /**
+     * Sums a random value per row, grouped by a random key.
+     *
+     * @return millions of rows per second
+     */
+    private static double run(Type kind, Field[] keys, int rows, boolean baseline) throws Exception {
+        Random rand = new Random(460);
+        Tuple t = new Tuple(new TupleDesc(new Type[]{kind, Type.INT_TYPE}));
+        IntegerAggregator agg = new IntegerAggregator(0, kind, 1, Aggregator.Op.SUM);
+        HashMap<String, int[]> map = new HashMap<String, int[]>();
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            t.setField(0, keys[rand.nextInt(keys.length)]);
+            t.setField(1, new IntField(rand.nextInt(100)));
+            if (!baseline) {
+                agg.mergeTupleIntoGroup(t);
+                continue;
+            }
+            String key = t.getField(0).toString();
+            int[] sum = map.get(key);
+            if (sum == null)
+                sum = new int[1];
+            sum[0] += ((IntField) t.getField(1)).getValue();
+            map.put(key, sum);
+        }
+        if (!baseline) {
+            DbIterator it = agg.iterator();
+            it.open();
+        }
+        return rows / ((System.nanoTime() - start) / 1000.0);
+    }
+}
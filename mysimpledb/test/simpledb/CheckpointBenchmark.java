@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how checkpoints stall concurrent writers. A long transaction
+ * keeps dirtying one page in each of a number of tables, and a checkpoint
+ * is taken every 50ms while writer threads commit one-row transactions.
+ * Checkpoints are taken as before fuzzy checkpoints (all pages flushed
+ * while the BufferPool is locked) and fuzzy, with the pages written by the
+ * background writer.
+ * <p/>
+ * Usage: java simpledb.CheckpointBenchmark [dirty pages] [writers] [seconds per run]
+ */
+public class CheckpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final long millis = (args.length > 2 ? Long.parseLong(args[2]) : 3) * 1000;
+
+        final HeapFile[] dirty = tables(pages);
+        HeapFile[] tables = tables(writers);
+
+        System.out.println("checkpoint\tcheckpoint ms\tcommits/s\tmax commit ms");
+        for (final boolean fuzzy : new boolean[]{false, true}) {
+            final AtomicLong done = new AtomicLong(0);
+            final AtomicLong maxCommit = new AtomicLong(0);
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            ArrayList<Thread> workers = new ArrayList<Thread>();
+            for (final HeapFile table : tables) {
+                Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            int v = 0;
+                            while (System.nanoTime() < deadline) {
+                                long start = System.nanoTime();
+                                Transaction txn = new Transaction();
+                                txn.start();
+                                insert(txn, table, v++);
+                                txn.commit();
+                                long took = System.nanoTime() - start;
+                                long max = maxCommit.get();
+                                while (took > max && !maxCommit.compareAndSet(max, took)) {
+                                    max = maxCommit.get();
+                                }
+                                done.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                workers.add(t);
+                t.start();
+            }
+
+            Transaction longTxn = new Transaction();
+            longTxn.start();
+            long checkpoints = 0;
+            long checkpointNanos = 0;
+            for (int v = 0; System.nanoTime() < deadline; v++) {
+                for (HeapFile table : dirty) {
+                    insert(longTxn, table, v);
+                }
+                long start = System.nanoTime();
+                if (fuzzy) {
+                    Database.getLogFile().logCheckpoint();
+                } else {
+                    synchronized (Database.getBufferPool()) {
+                        Database.getBufferPool().flushAllPages();
+                        Database.getLogFile().logCheckpoint();
+                    }
+                }
+                checkpointNanos += System.nanoTime() - start;
+                checkpoints++;
+                Thread.sleep(50);
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+            longTxn.commit();
+            System.out.printf("%s\t%.2f\t%.0f\t%.1f%n", fuzzy ? "fuzzy" : "flush all",
+                    checkpointNanos / 1e6 / checkpoints, done.get() * 1000.0 / millis, maxCommit.get() / 1e6);
+        }
+        System.exit(0);
+    }
+
+    private static HeapFile[] tables(int n) throws Exception {
+        HeapFile[] tables = new HeapFile[n];
+        for (int i = 0; i < n; i++) {
+            File f = File.createTempFile("checkpoint", ".dat");
+            f.deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        return tables;
+    }
+
+    private static void insert(Transaction txn, HeapFile table, int v) throws Exception {
+        Tuple row = new Tuple(Utility.getTupleDesc(2));
+        row.setField(0, new IntField(v));
+        row.setField(1, new IntField(0));
+        Insert insert = new Insert(txn.getId(),
+                new TupleIterator(row.getTupleDesc(), Arrays.asList(row)), table.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+}
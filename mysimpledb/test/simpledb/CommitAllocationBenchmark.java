@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated per committed transaction when each
+ * transaction inserts a few tuples into a table and commits, which
+ * serializes the dirtied pages for the log (before and after image) and
+ * for the heap file. Needs a JVM that reports per-thread allocation
+ * (com.sun.management.ThreadMXBean, e.g. HotSpot).
+ * <p/>
+ * Usage: java simpledb.CommitAllocationBenchmark [transactions] [tuples per transaction]
+ */
+public class CommitAllocationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int perTxn = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        File f = File.createTempFile("commitalloc", ".dat");
+        f.deleteOnExit();
+        Database.reset();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+
+        run(table, txns / 10, perTxn); //warm up
+        long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        run(table, txns, perTxn);
+        double micros = (System.nanoTime() - start) / 1e3 / txns;
+        long bytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        System.out.printf("%d transactions of %d inserts: %.0f bytes and %.0f us per commit%n",
+                txns, perTxn, (double) bytes / txns, micros);
+    }
+
+    private static void run(HeapFile table, int txns, int perTxn) throws Exception {
+        for (int i = 0; i < txns; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < perTxn; j++) {
+                Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(i, 2));
+            }
+            t.commit();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test: an empty two-column table
+     */
+    @Before
+    public void createTable() throws Exception {
+        file = File.createTempFile("fuzzy", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    /**
+     * Unit test for a checkpoint taken while a page is dirty: it writes no
+     * pages itself, and the page's recovery LSN in it makes recovery redo
+     * a change that was logged before it
+     */
+    @Test
+    public void redoFromDirtyPageTable() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        assertTrue(Database.getBufferPool().getDirtyPageTable().containsKey(pid));
+
+        // log the change as a flush would, but leave the page unwritten
+        Page p = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Database.getLogFile().logWrite(t.getId(), p.getBeforeImage(), p);
+        Database.getBufferPool().stopWriting();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, rowsOnDisk());
+        Database.getLogFile().logCommit(t.getId());
+
+        // crash and recover
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        pid = new HeapPageId(hf.getId(), 0);
+        Database.getLogFile().recover();
+        assertEquals(1, rowsOnDisk());
+    }
+
+    /**
+     * Unit test for BufferPool.flushPagesInBackground() after a checkpoint:
+     * the dirty page is logged and written, and leaves the dirty page table
+     */
+    @Test
+    public void backgroundWriter() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().flushPagesInBackground().get();
+        assertEquals(1, rowsOnDisk());
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        // the transaction goes on, and can still abort
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{3, 4}));
+        t.abort();
+        assertEquals(0, rowsOnDisk());
+    }
+
+    private int rowsOnDisk() {
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        return page.numSlots - page.getNumEmptySlots();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
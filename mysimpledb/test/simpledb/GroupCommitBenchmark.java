@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commits per second of concurrent writers, each inserting one
+ * row per transaction into a table of its own, with group commit off
+ * (every commit forces the log itself) and on.
+ * <p/>
+ * Usage: java simpledb.GroupCommitBenchmark [threads] [seconds per run] [delay (us)]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : LogFile.DEFAULT_GROUP_COMMIT_DELAY;
+
+        HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; i++) {
+            File f = File.createTempFile("commit", ".dat");
+            f.deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+
+        System.out.println("threads\tgroup commit\tcommits/s\tforces/commit");
+        int[] sizes = {1, LogFile.DEFAULT_GROUP_COMMIT_SIZE};
+        for (int size : sizes) {
+            Database.getLogFile().setGroupCommit(size, delay);
+            //warm up, then measure
+            run(tables, millis / 4);
+            long forces = Database.getLogFile().getForceCount();
+            long commits = run(tables, millis);
+            forces = Database.getLogFile().getForceCount() - forces;
+            System.out.printf("%d\t%s\t%.0f\t%.2f%n", threads, size > 1 ? "on" : "off",
+                    commits * 1000.0 / millis, (double) forces / commits);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the number of transactions committed
+     */
+    private static long run(final HeapFile[] tables, final long millis) throws Exception {
+        final AtomicLong done = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (final HeapFile table : tables) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (System.nanoTime() < deadline[0]) {
+                            Transaction txn = new Transaction();
+                            txn.start();
+                            Tuple row = new Tuple(Utility.getTupleDesc(2));
+                            row.setField(0, new IntField((int) count));
+                            row.setField(1, new IntField(0));
+                            Insert insert = new Insert(txn.getId(),
+                                    new TupleIterator(row.getTupleDesc(), Arrays.asList(row)), table.getId());
+                            insert.open();
+                            insert.next();
+                            insert.close();
+                            txn.commit();
+                            count++;
+                        }
+                        done.addAndGet(count);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1000000L;
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        return done.get();
+    }
+}
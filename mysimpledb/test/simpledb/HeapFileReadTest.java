@@ -3,7 +3,10 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -126,6 +129,78 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan has the pages after the current one read in the background,
+     * and still reads every page exactly once.
+     */
+    @Test
+    public void testIteratorReadAhead() throws Exception {
+        final int pages = 20;
+        final AtomicInteger reads = new AtomicInteger(0);
+        final AtomicInteger backgroundReads = new AtomicInteger(0);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, null);
+        HeapFile big = new HeapFile(f, td) {
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                if (Thread.currentThread().getName().equals("BufferPool read-ahead")) {
+                    backgroundReads.incrementAndGet();
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+        Database.resetBufferPool(pages * 2);
+        Database.getBufferPool().setReadAhead(4);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        it.close();
+        assertEquals(504 * pages, count);
+        assertEquals(pages, reads.get());
+        assertTrue(backgroundReads.get() > 0);
+    }
+
+    /**
+     * A page discarded while a read-ahead is reading it, as rollback does
+     * after writing the undone page, is read again by getPage: the
+     * read-ahead's copy may be older than the page on disk.
+     */
+    @Test
+    public void testReadAheadDiscarded() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch discarded = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger(0);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504, 1000, null, null);
+        HeapFile file = new HeapFile(f, td) {
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                if (Thread.currentThread().getName().equals("BufferPool read-ahead")) {
+                    reading.countDown();
+                    try {
+                        discarded.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        PageId pid = new HeapPageId(file.getId(), 0);
+
+        Database.getBufferPool().readAhead(pid);
+        reading.await();
+        Database.getBufferPool().discardPage(pid);
+        discarded.countDown();
+        Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(2, reads.get());
+    }
+
     /**
      * JUnit suite target
      */
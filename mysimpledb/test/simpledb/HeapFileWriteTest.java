@@ -1,6 +1,8 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.After;
@@ -53,6 +55,55 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go straight to a page with room: full pages are neither
+     * locked nor read, and a slot freed by deleteTuple is reused.
+     */
+    @Test
+    public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, empty.numPages());
+
+        // a fresh file object rebuilds its map from the page headers
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        tid = new TransactionId();
+        reopened.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(3, reopened.numPages());
+        HeapPageId p0 = new HeapPageId(reopened.getId(), 0);
+        HeapPageId p1 = new HeapPageId(reopened.getId(), 1);
+        assertFalse(Database.getBufferPool().holdsLock(tid, p0));
+        assertFalse(Database.getBufferPool().holdsLock(tid, p1));
+
+        Tuple victim = ((HeapPage) Database.getBufferPool().getPage(tid, p1, Permissions.READ_WRITE)).iterator().next();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        reopened.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(0, ((HeapPage) Database.getBufferPool().getPage(tid, p1, Permissions.READ_ONLY)).getNumEmptySlots());
+        assertEquals(3, reopened.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.writePage(): a written page reads back
+     * byte-for-byte, also through a second HeapFile on the same file.
+     */
+    @Test
+    public void writePageRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; ++i) {
+            page.insertTuple(Utility.getHeapTuple(i, 2));
+        }
+        empty.writePage(page);
+        assertEquals(1, empty.numPages());
+
+        byte[] expected = page.getPageData();
+        assertArrayEquals(expected, empty.readPage(pid).getPageData());
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertArrayEquals(expected, reopened.readPage(pid).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapPageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private HeapPage page;
+    private byte[] base;
+
+    /**
+     * Set up initial resources for each unit test: a page read from
+     * HeapPageReadTest.EXAMPLE_DATA
+     */
+    @Before
+    public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        base = page.getPageData();
+    }
+
+    /**
+     * Unit test for HeapPage.takeDelta(): an insert and a delete are two
+     * slot changes, which redo the base into the page and undo the page
+     * into the base
+     */
+    @Test
+    public void redoUndo() throws Exception {
+        page.insertTuple(Utility.getHeapTuple(new int[]{7, 8}));
+        page.deleteTuple(page.iterator().next());
+        HeapPageDelta delta = page.takeDelta(page.getBeforeImage());
+        assertEquals(2, delta.numChanges());
+
+        byte[] data = base.clone();
+        delta.apply(data, true);
+        assertArrayEquals(page.getPageData(), data);
+        delta.apply(data, false);
+        assertArrayEquals(base, data);
+        delta.inverse().apply(data, false);
+        assertArrayEquals(page.getPageData(), data);
+    }
+
+    /**
+     * Unit test for HeapPage.takeDelta() taken twice: the second delta
+     * holds the changes since the first, so a tuple inserted and then
+     * deleted is gone after redoing both
+     */
+    @Test
+    public void sinceLastDelta() throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[]{7, 8});
+        page.insertTuple(t);
+        HeapPageDelta first = page.takeDelta(page.getBeforeImage());
+        page.deleteTuple(t);
+        HeapPageDelta second = page.takeDelta(page.getBeforeImage());
+        assertEquals(1, first.numChanges());
+        assertEquals(1, second.numChanges());
+
+        byte[] data = base.clone();
+        first.apply(data, true);
+        second.apply(data, true);
+        assertArrayEquals(base, data);
+
+        page.setBeforeImage();
+        assertEquals(0, page.takeDelta(page.getBeforeImage()).numChanges());
+    }
+
+    /**
+     * Unit test for HeapPageDelta.write() and read(): a one-tuple insert
+     * takes a few dozen bytes, against two page images for an UPDATE record
+     */
+    @Test
+    public void writeRead() throws Exception {
+        page.insertTuple(Utility.getHeapTuple(new int[]{7, 8}));
+        HeapPageDelta delta = page.takeDelta(page.getBeforeImage());
+        ByteBuffer buf = ByteBuffer.allocate(delta.size());
+        delta.write(buf);
+        assertEquals(delta.size(), buf.position());
+        assertTrue(delta.size() * 100 < 2 * LogFile.pageDataSize(page));
+
+        HeapPageDelta read = HeapPageDelta.read(new DataInputStream(new ByteArrayInputStream(buf.array())));
+        assertEquals(pid, read.getId());
+        assertEquals(delta.toString(), read.toString());
+        byte[] data = base.clone();
+        read.apply(data, true);
+        assertArrayEquals(page.getPageData(), data);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageDeltaTest.class);
+    }
+}
@@ -11,6 +11,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -128,6 +129,29 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Tuples are decoded lazily; a page whose tuples were only partly read
+     * still serializes to the bytes it was read from.
+     */
+    @Test
+    public void lazyDecodingRoundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        byte[] untouched = page.getPageData();
+
+        Iterator<Tuple> it = page.iterator();
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (row % 2 == 0) {
+                assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            }
+            assertEquals(row, tup.getRecordId().tupleno());
+            row++;
+        }
+        assertArrayEquals(untouched, page.getPageData());
+        assertArrayEquals(untouched, new HeapPage(pid, untouched).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,9 +1,11 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -130,6 +132,98 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before-image is the content as of the last commit: taken when
+     * the page is first changed, kept across further changes and reset by
+     * setBeforeImage().
+     */
+    @Test
+    public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] original = page.getPageData();
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.markDirty(true, new TransactionId());
+        page.deleteTuple(page.iterator().next());
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * An iterator returns the tuples on the page when it was created: a
+     * tuple inserted into a later slot is not returned, and a tuple deleted
+     * ahead of it still is, with its contents as read.
+     */
+    @Test
+    public void iteratorSnapshot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        LinkedList<String> expected = new LinkedList<String>();
+        Iterator<Tuple> all = page.iterator();
+        while (all.hasNext())
+            expected.add(all.next().toString());
+
+        Iterator<Tuple> it = page.iterator();
+        LinkedList<String> seen = new LinkedList<String>();
+        seen.add(it.next().toString());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        Iterator<Tuple> ahead = page.iterator();
+        ahead.next();
+        page.deleteTuple(ahead.next());
+        while (it.hasNext())
+            seen.add(it.next().toString());
+        assertEquals(expected, seen);
+    }
+
+    /**
+     * The version changes with every insert and delete, and not when the
+     * page is only read or marked dirty.
+     */
+    @Test
+    public void version() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        long v = page.getVersion();
+        page.getPageData();
+        page.iterator().next();
+        page.markDirty(true, new TransactionId());
+        assertEquals(v, page.getVersion());
+
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        long inserted = page.getVersion();
+        assertTrue(inserted != v);
+        page.deleteTuple(page.iterator().next());
+        assertTrue(page.getVersion() != inserted);
+    }
+
+    /**
+     * Serializing into a reused buffer gives the same bytes as
+     * getPageData(), whatever the buffer held before.
+     */
+    @Test
+    public void getPageDataIntoBuffer() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize() + 8);
+        while (buf.hasRemaining())
+            buf.put((byte) 0x5a);
+        buf.clear();
+        buf.position(8);
+        page.getPageData(buf);
+        assertEquals(8 + BufferPool.getPageSize(), buf.position());
+
+        byte[] written = new byte[BufferPool.getPageSize()];
+        buf.position(8);
+        buf.get(written);
+        assertArrayEquals(page.getPageData(), written);
+    }
+
     /**
      * JUnit suite target
      */
@@ -2,7 +2,9 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.HashMap;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -184,6 +186,83 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Test IntegerAggregator with enough INT groups, including negative
+     * and colliding keys, to grow its hash table several times
+     */
+    @Test
+    public void manyIntGroups() throws Exception {
+        Random rand = new Random(460);
+        HashMap<Integer, int[]> expected = new HashMap<Integer, int[]>();
+        IntegerAggregator sum = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        IntegerAggregator min = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MIN);
+        for (int i = 0; i < 50000; i++) {
+            int key = (rand.nextInt(5000) - 2500) << 12;
+            int x = rand.nextInt(1000);
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(x));
+            sum.mergeTupleIntoGroup(t);
+            min.mergeTupleIntoGroup(t);
+            int[] e = expected.get(key);
+            if (e == null) {
+                e = new int[]{0, Integer.MAX_VALUE};
+                expected.put(key, e);
+            }
+            e[0] += x;
+            e[1] = Math.min(e[1], x);
+        }
+        assertEquals(expected.size(), sum.numGroups());
+        int[] field = {0, 1};
+        IntegerAggregator[] aggs = {sum, min};
+        for (int k = 0; k < 2; k++) {
+            DbIterator it = aggs[k].iterator();
+            it.open();
+            int n = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int key = ((IntField) t.getField(0)).getValue();
+                assertEquals(expected.get(key)[field[k]], ((IntField) t.getField(1)).getValue());
+                n++;
+            }
+            assertEquals(expected.size(), n);
+        }
+    }
+
+    /**
+     * Test IntegerAggregator grouping by a STRING field
+     */
+    @Test
+    public void stringGroups() throws Exception {
+        DbIterator scan = TestUtil.createTupleList(2,
+                new Object[]{"a", 2, "b", 4, "a", 6, "c", 1, "b", 5});
+        scan.open();
+        IntegerAggregator agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG);
+        while (scan.hasNext())
+            agg.mergeTupleIntoGroup(scan.next());
+        DbIterator it = agg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(2,
+                new Object[]{"a", 4, "b", 4, "c", 1}), it);
+
+        // enough keys to grow the group table several times
+        Object[] data = new Object[2 * 3000];
+        for (int i = 0; i < 3000; i++) {
+            data[2 * i] = "k" + (i % 1000);
+            data[2 * i + 1] = i;
+        }
+        scan = TestUtil.createTupleList(2, data);
+        scan.open();
+        agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT);
+        while (scan.hasNext())
+            agg.mergeTupleIntoGroup(scan.next());
+        assertEquals(1000, agg.numGroups());
+        it = agg.iterator();
+        it.open();
+        while (it.hasNext())
+            assertEquals(3, ((IntField) it.next().getField(1)).getValue());
+    }
+
     /**
      * JUnit suite target
      */
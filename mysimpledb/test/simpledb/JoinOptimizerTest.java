@@ -201,6 +201,40 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * Equality joins are hashed; large range joins are sort-merged, small
+     * ones run as nested loops, and orderJoins records the choice.
+     */
+    @Test
+    public void chooseJoinMethodTest() throws ParsingException {
+        LogicalJoinNode eq = new LogicalJoinNode(tableName1, tableName2,
+                Integer.toString(1), Integer.toString(2), Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode(tableName1, tableName2,
+                Integer.toString(1), Integer.toString(2), Predicate.Op.LESS_THAN);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                JoinOptimizer.chooseJoinMethod(eq, 100000, 100000, 1000, 1000));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.SORT_MERGE,
+                JoinOptimizer.chooseJoinMethod(lt, 100000, 100000, 1000, 1000));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.NESTED_LOOPS,
+                JoinOptimizer.chooseJoinMethod(lt, 2, 2, 1000, 1000));
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN));
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 < t2.c2;"), nodes);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+        Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(JoinOptimizer.JoinMethod.SORT_MERGE, result.get(0).method);
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
@@ -1,9 +1,14 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -124,6 +129,171 @@ public class JoinTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(eqJoin, op);
     }
 
+    /**
+     * Unit test for Join with blocks smaller than the outer relation: the
+     * inner relation is rescanned per block and every match is still found
+     */
+    @Test
+    public void blockJoin() throws Exception {
+        for (int blockTuples = 1; blockTuples <= 5; blockTuples++) {
+            JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+            Join op = new Join(pred, scan1, scan2, blockTuples);
+            assertEquals(collect(gtJoin), collect(op));
+            op.rewind();
+            assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(new int[]{3, 4, 1, 2, 3}), op.next()));
+            op.close();
+            gtJoin.close();
+        }
+    }
+
+    /**
+     * Unit test for HashEquiJoin: same output as Join, also after rewind
+     */
+    @Test
+    public void hashEqJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+        op.open();
+        eqJoin.open();
+        matchInOrder(eqJoin, op);
+        op.rewind();
+        eqJoin.rewind();
+        matchInOrder(eqJoin, op);
+    }
+
+    /**
+     * Unit test for HashEquiJoin with several tuples per key on both sides
+     */
+    @Test
+    public void hashEqJoinDuplicates() throws Exception {
+        DbIterator outer = TestUtil.createTupleList(width1,
+                new int[]{1, 10,
+                        2, 20,
+                        1, 11});
+        DbIterator inner = TestUtil.createTupleList(width1,
+                new int[]{1, 100,
+                        3, 300,
+                        1, 101});
+        DbIterator expected = TestUtil.createTupleList(2 * width1,
+                new int[]{1, 10, 1, 100,
+                        1, 10, 1, 101,
+                        1, 11, 1, 100,
+                        1, 11, 1, 101});
+        HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer, inner);
+        op.open();
+        expected.open();
+        matchInOrder(expected, op);
+    }
+
+    /**
+     * Unit test for HashEquiJoin when the inner child does not fit in its
+     * memory budget: partitions are spilled, repartitioned, and a heavy key
+     * is joined in chunks, giving the same tuples as Join, also after rewind.
+     */
+    @Test
+    public void hashEqJoinSpills() throws Exception {
+        Random rand = new Random(460);
+        int[] outer = new int[2 * 400];
+        for (int i = 0; i < outer.length; i += 2) {
+            outer[i] = rand.nextInt(50);
+            outer[i + 1] = i;
+        }
+        int[] inner = new int[2 * 600];
+        for (int i = 0; i < inner.length; i += 2) {
+            inner[i] = i < 400 ? 7 : rand.nextInt(60);
+            inner[i + 1] = -i;
+        }
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<String> expected = collect(new Join(pred,
+                TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner)));
+
+        // room for about ten inner tuples
+        HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, outer),
+                TestUtil.createTupleList(2, inner), 10 * (8 + 64));
+        assertEquals(expected, collect(op));
+        assertTrue(op.partitionsWritten > HashEquiJoin.FANOUT);
+        op.rewind();
+        ArrayList<String> again = new ArrayList<String>();
+        while (op.hasNext()) {
+            again.add(op.next().toString());
+        }
+        Collections.sort(again);
+        assertEquals(expected, again);
+        op.close();
+    }
+
+    /**
+     * Unit test for SortMergeJoin: every supported predicate gives the same
+     * tuples as Join on unsorted inputs with duplicate keys, also after
+     * rewind and with the range spilled to disk, and an input sorted by
+     * OrderBy is used as it is and read once
+     */
+    @Test
+    public void sortMergeJoin() throws Exception {
+        Random rand = new Random(460);
+        int[] outer = new int[2 * 60];
+        for (int i = 0; i < outer.length; i += 2) {
+            outer[i] = rand.nextInt(15);
+            outer[i + 1] = i;
+        }
+        int[] inner = new int[2 * 80];
+        for (int i = 0; i < inner.length; i += 2) {
+            inner[i] = rand.nextInt(20);
+            inner[i + 1] = -i;
+        }
+        Predicate.Op[] ops = {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        long[] budgets = {SortMergeJoin.DEFAULT_MEMORY, 256};
+        for (Predicate.Op op : ops) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            ArrayList<String> expected = collect(new Join(pred,
+                    TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner)));
+            for (long memory : budgets) {
+                final int[] rewinds = {0};
+                OrderBy sortedInner = new OrderBy(0, true, TestUtil.createTupleList(2, inner)) {
+                    public void rewind() throws DbException, TransactionAbortedException {
+                        rewinds[0]++;
+                        super.rewind();
+                    }
+                };
+                SortMergeJoin smj = new SortMergeJoin(pred, TestUtil.createTupleList(2, outer), sortedInner, memory);
+                assertEquals(op.toString(), expected, collect(smj));
+                // OrderBy.open rewinds itself once
+                assertEquals(op.toString(), 1, rewinds[0]);
+                smj.rewind();
+                ArrayList<String> again = new ArrayList<String>();
+                while (smj.hasNext()) {
+                    again.add(smj.next().toString());
+                }
+                Collections.sort(again);
+                assertEquals(op.toString(), expected, again);
+                smj.close();
+            }
+        }
+        assertTrue(SortMergeJoin.isSorted(new OrderBy(0, true, scan1), 0));
+        assertFalse(SortMergeJoin.isSorted(new OrderBy(0, false, scan1), 0));
+        assertFalse(SortMergeJoin.isSorted(new OrderBy(1, true, scan1), 0));
+    }
+
+    // Opens op and returns its tuples as sorted strings
+    private static ArrayList<String> collect(DbIterator op) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            ret.add(op.next().toString());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static void matchInOrder(DbIterator expected, DbIterator actual) throws Exception {
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertTrue(TestUtil.checkExhausted(actual));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures LockManager throughput as the number of threads grows, comparing
+ * a single stripe (the old single-monitor table) against the striped table.
+ * Each transaction locks a few pages, mostly private to its thread with an
+ * occasional shared hot page, and then aborts to release them.
+ * <p/>
+ * Usage: java simpledb.LockManagerBenchmark [stripes] [seconds per run]
+ */
+public class LockManagerBenchmark {
+    private static final int PAGES_PER_TXN = 4;
+    private static final int PAGES_PER_THREAD = 64;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        int stripes = args.length > 0 ? Integer.parseInt(args[0]) : LockManager.DEFAULT_STRIPES;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 2) * 1000;
+
+        System.out.println("threads\t1 stripe (txn/s)\t" + stripes + " stripes (txn/s)\tspeedup");
+        for (int threads : THREAD_COUNTS) {
+            //warm up both tables before measuring
+            run(1, threads, millis / 4);
+            run(stripes, threads, millis / 4);
+            double single = run(1, threads, millis);
+            double striped = run(stripes, threads, millis);
+            System.out.printf("%d\t%.0f\t%.0f\t%.2fx%n", threads, single, striped, striped / single);
+        }
+    }
+
+    /**
+     * @return committed (lock-all, abort) transactions per second
+     */
+    private static double run(int stripes, int threads, final long millis) throws Exception {
+        final LockManager lm = new LockManager(stripes);
+        final AtomicLong done = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    int next = 0;
+                    while (System.nanoTime() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int j = 0; j < PAGES_PER_TXN; j++) {
+                                PageId pid = new HeapPageId(me, next++ % PAGES_PER_THREAD);
+                                lm.acquireLock(pid, tid, Permissions.READ_WRITE);
+                            }
+                            //every transaction also reads the catalog-like hot page
+                            lm.acquireLock(new HeapPageId(-1, 0), tid, Permissions.READ_ONLY);
+                            count++;
+                        } catch (TransactionAbortedException e) {
+                            //cannot happen: writes are thread-private and the hot page is shared
+                        } finally {
+                            lm.abort(tid);
+                        }
+                    }
+                    done.addAndGet(count);
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1000000L;
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        return done.get() / seconds;
+    }
+}
@@ -0,0 +1,391 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests for LockManager: contention with many more threads than there are
+ * cores, queueing order and deadlock detection.
+ */
+public class LockManagerTest {
+    private static final int THREADS_PER_CORE = 8;
+    private static final int ITERATIONS = 200;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private int threads;
+
+    @Before
+    public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(0, 0);
+        p1 = new HeapPageId(0, 1);
+        threads = Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE;
+    }
+
+    /**
+     * Many writers hammer two pages. Each page's counter is only updated
+     * under its exclusive lock, so no increment may be lost, and nobody
+     * should time out since every critical section is short.
+     */
+    @Test
+    public void writersUnderContention() throws Exception {
+        final int[] counters = new int[2];
+        final AtomicInteger aborts = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int page = i % 2;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    PageId pid = page == 0 ? p0 : p1;
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            lm.acquireLock(pid, tid, Permissions.READ_WRITE);
+                            counters[page]++;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } finally {
+                            lm.abort(tid);
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        assertEquals(0, aborts.get());
+        assertEquals(threads * ITERATIONS, counters[0] + counters[1]);
+    }
+
+    /**
+     * Readers and writers of a single page: a reader holding the lock must
+     * never see a writer inside its critical section.
+     */
+    @Test
+    public void sharedLocksExcludeWriters() throws Exception {
+        final AtomicInteger readers = new AtomicInteger(0);
+        final AtomicInteger writers = new AtomicInteger(0);
+        final AtomicInteger violations = new AtomicInteger(0);
+        final AtomicInteger aborts = new AtomicInteger(0);
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final boolean writer = i % 4 == 0;
+            Thread t = new Thread() {
+                public void run() {
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            lm.acquireLock(p0, tid, writer ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                            AtomicInteger mine = writer ? writers : readers;
+                            mine.incrementAndGet();
+                            if (writers.get() > 1 || (writers.get() > 0 && readers.get() > 0)) {
+                                violations.incrementAndGet();
+                            }
+                            Thread.yield();
+                            mine.decrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } finally {
+                            lm.abort(tid);
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertEquals(0, violations.get());
+        assertEquals(0, aborts.get());
+    }
+
+    /**
+     * Threads waiting on a held lock should be parked, not spinning: while
+     * one transaction holds an exclusive lock, the waiters together should
+     * burn only a small fraction of the CPU that a spin loop would.
+     */
+    @Test
+    public void waitersDoNotSpin() throws Exception {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isCurrentThreadCpuTimeSupported());
+        final long holdMillis = 500;
+
+        TransactionId holder = new TransactionId();
+        lm.acquireLock(p0, holder, Permissions.READ_WRITE);
+
+        final long[] cpuNanos = new long[threads];
+        final boolean[] acquired = new boolean[threads];
+        ArrayList<Thread> waiters = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            Thread t = new Thread() {
+                public void run() {
+                    long before = mx.getCurrentThreadCpuTime();
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.acquireLock(p0, tid, Permissions.READ_ONLY);
+                        acquired[me] = true;
+                    } catch (TransactionAbortedException e) {
+                        acquired[me] = false;
+                    } finally {
+                        cpuNanos[me] = mx.getCurrentThreadCpuTime() - before;
+                        lm.abort(tid);
+                    }
+                }
+            };
+            waiters.add(t);
+            t.start();
+        }
+
+        Thread.sleep(holdMillis);
+        assertFalse(lm.checkLock(new TransactionId(), p0));
+        lm.releaseLock(p0, holder);
+        long totalCpu = 0;
+        for (int i = 0; i < threads; i++) {
+            waiters.get(i).join();
+            assertTrue(acquired[i]);
+            totalCpu += cpuNanos[i];
+        }
+
+        // a spinning implementation keeps every core busy for the whole hold
+        long spinCpu = holdMillis * 1000000L * Runtime.getRuntime().availableProcessors();
+        assertTrue("waiters used " + totalCpu / 1000000 + "ms of CPU", totalCpu < spinCpu / 4);
+    }
+
+    /**
+     * Upgrades still work while other transactions queue behind them.
+     */
+    @Test
+    public void upgradeIsGrantedBeforeQueuedWriters() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(p0, t1, Permissions.READ_ONLY);
+        lm.acquireLock(p0, t2, Permissions.READ_ONLY);
+
+        Grabber upgrade = startGrabber(t1, p0, Permissions.READ_WRITE);
+        Thread.sleep(100);
+        assertFalse(upgrade.acquired);
+
+        // a new writer must queue behind the pending upgrade
+        Grabber writer = startGrabber(t3, p0, Permissions.READ_WRITE);
+        Thread.sleep(100);
+
+        lm.releaseLock(p0, t2);
+        upgrade.join();
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+
+        lm.abort(t1);
+        writer.join();
+        assertTrue(writer.acquired);
+        lm.abort(t3);
+    }
+
+    /**
+     * A two-transaction cycle is broken as soon as the second wait starts,
+     * by aborting the younger transaction.
+     */
+    @Test
+    public void youngestVictimAbortedImmediately() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(p0, older, Permissions.READ_WRITE);
+        lm.acquireLock(p1, younger, Permissions.READ_WRITE);
+
+        Grabber olderWait = startGrabber(older, p1, Permissions.READ_WRITE);
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        Grabber youngerWait = startGrabber(younger, p0, Permissions.READ_WRITE);
+        youngerWait.join();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(youngerWait.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.abort(younger);
+        olderWait.join();
+        assertTrue(olderWait.acquired);
+        lm.abort(older);
+    }
+
+    /**
+     * With the FEWEST_LOCKS policy the transaction holding less is aborted,
+     * even if it is the older one and not the one that closed the cycle.
+     */
+    @Test
+    public void fewestLocksVictim() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId small = new TransactionId();
+        TransactionId big = new TransactionId();
+        lm.acquireLock(p0, small, Permissions.READ_WRITE);
+        lm.acquireLock(p1, big, Permissions.READ_WRITE);
+        for (int i = 2; i < 10; i++) {
+            lm.acquireLock(new HeapPageId(0, i), big, Permissions.READ_WRITE);
+        }
+
+        Grabber smallWait = startGrabber(small, p1, Permissions.READ_WRITE);
+        Thread.sleep(100);
+        Grabber bigWait = startGrabber(big, p0, Permissions.READ_WRITE);
+        smallWait.join();
+        assertTrue(smallWait.error instanceof TransactionAbortedException);
+
+        lm.abort(small);
+        bigWait.join();
+        assertTrue(bigWait.acquired);
+        assertEquals(1, lm.getDeadlockCount());
+        lm.abort(big);
+    }
+
+    /**
+     * Waiting without a cycle never aborts anyone.
+     */
+    @Test
+    public void noFalseDeadlocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(p0, t1, Permissions.READ_WRITE);
+        Grabber chain = startGrabber(t2, p0, Permissions.READ_ONLY);
+        Grabber tail = startGrabber(t3, p0, Permissions.READ_ONLY);
+        Thread.sleep(100);
+        lm.abort(t1);
+        chain.join();
+        tail.join();
+        assertTrue(chain.acquired);
+        assertTrue(tail.acquired);
+        assertEquals(0, lm.getDeadlockCount());
+        assertTrue(lm.getDetectionRuns() >= 2);
+    }
+
+    /**
+     * The per-transaction registry follows grants, releases and aborts,
+     * including locks granted to a waiter when another transaction aborts.
+     */
+    @Test
+    public void lockedPagesRegistry() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(p0, t1, Permissions.READ_WRITE);
+        lm.acquireLock(p1, t1, Permissions.READ_ONLY);
+        assertEquals(2, lm.getLockedPages(t1).size());
+
+        lm.releaseLock(p1, t1);
+        assertEquals(1, lm.getLockedPages(t1).size());
+        assertTrue(lm.getLockedPages(t1).contains(p0));
+
+        Grabber waiter = startGrabber(t2, p0, Permissions.READ_ONLY);
+        Thread.sleep(100);
+        assertTrue(lm.getLockedPages(t2).isEmpty());
+
+        lm.abort(t1);
+        waiter.join();
+        assertTrue(lm.getLockedPages(t1).isEmpty());
+        assertTrue(lm.getLockedPages(t2).contains(p0));
+        assertFalse(lm.checkLock(t1, p0));
+
+        lm.abort(t2);
+        assertTrue(lm.getLockedPages(t2).isEmpty());
+    }
+
+    /**
+     * Aborting a transaction whose locks are spread over every stripe hands
+     * each page to its waiter; the same holds with a single stripe.
+     */
+    @Test
+    public void abortAcrossStripes() throws Exception {
+        int[] stripeCounts = {1, LockManager.DEFAULT_STRIPES};
+        for (int stripes : stripeCounts) {
+            lm = new LockManager(stripes);
+            TransactionId holder = new TransactionId();
+            int pages = LockManager.DEFAULT_STRIPES * 4;
+            ArrayList<Grabber> waiters = new ArrayList<Grabber>();
+            for (int i = 0; i < pages; i++) {
+                lm.acquireLock(new HeapPageId(1, i), holder, Permissions.READ_WRITE);
+            }
+            for (int i = 0; i < pages; i++) {
+                waiters.add(startGrabber(new TransactionId(), new HeapPageId(1, i), Permissions.READ_ONLY));
+            }
+            Thread.sleep(100);
+            assertEquals(pages, lm.getLockedPages(holder).size());
+
+            lm.abort(holder);
+            for (int i = 0; i < pages; i++) {
+                Grabber g = waiters.get(i);
+                g.join();
+                assertTrue(g.acquired);
+                assertTrue(lm.checkLock(g.tid, new HeapPageId(1, i)));
+                lm.abort(g.tid);
+            }
+            assertTrue(lm.getLockedPages(holder).isEmpty());
+            assertEquals(0, lm.getDeadlockCount());
+        }
+    }
+
+    private Grabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+        Grabber g = new Grabber(tid, pid, perm);
+        g.start();
+        return g;
+    }
+
+    /**
+     * Acquires a lock directly from the LockManager in a new thread.
+     */
+    private class Grabber extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Grabber(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(pid, tid, perm);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
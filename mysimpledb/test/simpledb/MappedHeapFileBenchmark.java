@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Compares SeqScan throughput over the IMDB tables when pages are read
+ * through the file channel (HeapFile) and through a memory mapping
+ * (MappedHeapFile). The buffer pool is reset before every scan so that each
+ * page is read from the DbFile again; the files themselves stay in the OS
+ * page cache after the warm-up, so this measures the read path, not the
+ * disk.
+ * <p/>
+ * Usage: java simpledb.MappedHeapFileBenchmark [data dir] [scans]
+ */
+public class MappedHeapFileBenchmark {
+    private static final String[] TABLES = {"Movie", "Movie_Director"};
+    private static final Type[][] TYPES = {
+            {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+            {Type.INT_TYPE, Type.INT_TYPE}};
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : ".";
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        System.out.println("table\tpages\tchannel (ms/scan)\tmapped (ms/scan)\tspeedup");
+        for (int i = 0; i < TABLES.length; i++) {
+            File f = new File(dir, TABLES[i] + ".dat");
+            TupleDesc td = new TupleDesc(TYPES[i]);
+            //warm up both paths, then measure
+            scan(new HeapFile(f, td), scans / 5 + 1);
+            scan(new MappedHeapFile(f, td), scans / 5 + 1);
+            double channel = scan(new HeapFile(f, td), scans);
+            double mapped = scan(new MappedHeapFile(f, td), scans);
+            System.out.printf("%s\t%d\t%.3f\t%.3f\t%.2fx%n", TABLES[i],
+                    new HeapFile(f, td).numPages(), channel, mapped, channel / mapped);
+        }
+    }
+
+    /**
+     * @return mean milliseconds per full scan of the table
+     */
+    private static double scan(HeapFile table, int scans) throws Exception {
+        Database.reset();
+        Database.getCatalog().addTable(table, "t");
+        long tuples = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            Database.resetBufferPool(table.numPages() + 1);
+            TransactionId tid = new TransactionId();
+            SeqScan ss = new SeqScan(tid, table.getId());
+            ss.open();
+            while (ss.hasNext()) {
+                ss.next();
+                tuples++;
+            }
+            ss.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / scans;
+        if (tuples == 0) {
+            throw new IllegalStateException("scanned no tuples");
+        }
+        return ms;
+    }
+}
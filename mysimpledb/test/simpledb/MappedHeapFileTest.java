@@ -0,0 +1,85 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private MappedHeapFile mapped;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test: a table of 10 pages,
+     * mapped in segments of 4 pages.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        mapped = new MappedHeapFile(hf.getFile(), hf.getTupleDesc(), 4);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages read through the mappings, across segment boundaries, are
+     * identical to channel reads.
+     */
+    @Test
+    public void readPage() throws Exception {
+        assertEquals(10, hf.numPages());
+        assertEquals(hf.numPages(), mapped.numPages());
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertArrayEquals(hf.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        }
+        assertEquals(10, mapped.mappedPages());
+    }
+
+    /**
+     * Pages appended after the file was mapped are read through the
+     * channel until there are a segment's worth of them, and then mapped.
+     * Overwritten pages read back their new contents, and a page read
+     * earlier keeps the contents it was read with.
+     */
+    @Test
+    public void mappingGrows() throws Exception {
+        HeapPageId first = new HeapPageId(mapped.getId(), 0);
+        HeapPage before = (HeapPage) mapped.readPage(first);
+        byte[] original = before.getPageData();
+        assertEquals(10, mapped.mappedPages());
+
+        for (int n = 10; n < 14; n++) {
+            HeapPageId pid = new HeapPageId(mapped.getId(), n);
+            HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(n, 2));
+            mapped.writePage(page);
+            assertEquals(n + 1, mapped.numPages());
+            assertArrayEquals(page.getPageData(), mapped.readPage(pid).getPageData());
+            assertEquals(n < 13 ? 10 : 14, mapped.mappedPages());
+        }
+
+        HeapPage emptied = new HeapPage(first, HeapPage.createEmptyPageData());
+        mapped.writePage(emptied);
+        assertEquals(emptied.getNumEmptySlots(), ((HeapPage) mapped.readPage(first)).getNumEmptySlots());
+        assertArrayEquals(original, before.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    int[] data;
+
+    /**
+     * Initialize each unit test: 1000 two-column tuples with a random key
+     * in the first column and their position in the second
+     */
+    @Before
+    public void setUp() {
+        Random rand = new Random(460);
+        data = new int[2 * 1000];
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = rand.nextInt(300);
+            data[i + 1] = i / 2;
+        }
+    }
+
+    /**
+     * Unit test for OrderBy sorting in memory, in both directions; equal
+     * keys keep their input order
+     */
+    @Test
+    public void inMemory() throws Exception {
+        OrderBy asc = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+        checkSorted(read(asc), true);
+        assertEquals(0, asc.getRunCount());
+        assertEquals(0, asc.getSpillBytes());
+        checkSorted(read(new OrderBy(0, false, TestUtil.createTupleList(2, data))), false);
+    }
+
+    /**
+     * Unit test for OrderBy with a budget of ten tuples: runs are written
+     * and merged, in several passes, into the same order as in memory
+     */
+    @Test
+    public void external() throws Exception {
+        ArrayList<String> expected = read(new OrderBy(0, true, TestUtil.createTupleList(2, data)));
+        OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data), 10 * (8 + 64));
+        assertEquals(expected, read(op));
+        // 100 initial runs, merged two at a time
+        assertTrue(op.getRunCount() > 100);
+        assertTrue(op.getSpillBytes() >= 1000 * 8);
+    }
+
+    /**
+     * Unit test for OrderBy.rewind() and for opening an OrderBy again,
+     * which used to return its input twice
+     */
+    @Test
+    public void rewindAndReopen() throws Exception {
+        long[] budgets = {OrderBy.DEFAULT_MEMORY, 100 * (8 + 64)};
+        for (long memory : budgets) {
+            OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data), memory);
+            ArrayList<String> first = read(op);
+            assertEquals(1000, first.size());
+            op.rewind();
+            ArrayList<String> again = new ArrayList<String>();
+            while (op.hasNext()) {
+                again.add(op.next().toString());
+            }
+            assertEquals(first, again);
+            op.close();
+            assertEquals(first, read(op));
+            op.close();
+        }
+    }
+
+    // Opens op and returns its tuples as strings, in order
+    private static ArrayList<String> read(OrderBy op) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            ret.add(op.next().toString());
+        }
+        return ret;
+    }
+
+    private static void checkSorted(ArrayList<String> tuples, boolean asc) {
+        assertEquals(1000, tuples.size());
+        for (int i = 1; i < tuples.size(); i++) {
+            String[] a = tuples.get(i - 1).split("\t");
+            String[] b = tuples.get(i).split("\t");
+            int c = Integer.parseInt(a[0]) - Integer.parseInt(b[0]);
+            assertTrue(asc ? c <= 0 : c >= 0);
+            if (c == 0)
+                assertTrue(Integer.parseInt(a[1]) < Integer.parseInt(b[1]));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
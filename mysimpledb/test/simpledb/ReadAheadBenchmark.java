@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures full-scan bandwidth of a large heap file for several read-ahead
+ * depths. The table is written once as full pages of two int columns; the
+ * buffer pool is much smaller than the table, so every page is read from
+ * the file during every scan. Run it on a file larger than memory (or after
+ * dropping the OS page cache) to see the device rather than the page cache.
+ * <p/>
+ * Usage: java simpledb.ReadAheadBenchmark [MB] [depth...]
+ */
+public class ReadAheadBenchmark {
+    private static final int POOL_PAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int[] depths = {0, 4, 8, 32};
+        if (args.length > 1) {
+            depths = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                depths[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File f = File.createTempFile("readahead", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(2);
+        int pages = mb * 1024 * 1024 / BufferPool.PAGE_SIZE;
+        writeFullPages(f, td, pages);
+
+        HeapFile table = new HeapFile(f, td);
+        Database.getCatalog().addTable(table, "t");
+        System.out.println("depth\tMB/s");
+        scan(table, 0); //warm up
+        for (int depth : depths) {
+            long start = System.nanoTime();
+            scan(table, depth);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d\t%.1f%n", depth, mb / seconds);
+        }
+    }
+
+    private static void scan(HeapFile table, int depth) throws Exception {
+        Database.resetBufferPool(POOL_PAGES).setReadAhead(depth);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        //a read-only scan of this size holds more locks than it is worth keeping
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    //Every slot used; the tuples themselves are all zero
+    private static void writeFullPages(File f, TupleDesc td, int pages) throws IOException {
+        int slots = HeapPage.slotsPerPage(td);
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        for (int i = 0; i < slots; i++) {
+            page[i / 8] |= 1 << (i % 8);
+        }
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            for (int i = 0; i < pages; i++) {
+                out.write(page);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    int[] data;
+
+    /**
+     * Initialize each unit test: 1000 two-column tuples with a random key
+     * in the first column and their position in the second
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Random rand = new Random(460);
+        data = new int[2 * 1000];
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = rand.nextInt(300);
+            data[i + 1] = i / 2;
+        }
+    }
+
+    /**
+     * Unit test for TopN: the first n tuples of the same OrderBy, ties
+     * included, in both directions
+     */
+    @Test
+    public void matchesOrderBy() throws Exception {
+        int[] limits = {0, 1, 7, 100, 1000, 5000};
+        boolean[] dirs = {true, false};
+        for (boolean asc : dirs) {
+            ArrayList<String> sorted = read(new OrderBy(0, asc, TestUtil.createTupleList(2, data)));
+            for (int n : limits) {
+                TopN op = new TopN(0, asc, n, TestUtil.createTupleList(2, data));
+                assertEquals(sorted.subList(0, Math.min(n, sorted.size())), read(op));
+            }
+        }
+    }
+
+    /**
+     * Unit test for TopN.rewind() and for opening a TopN again
+     */
+    @Test
+    public void rewindAndReopen() throws Exception {
+        TopN op = new TopN(0, true, 10, TestUtil.createTupleList(2, data));
+        ArrayList<String> first = read(op);
+        assertEquals(10, first.size());
+        op.rewind();
+        ArrayList<String> again = new ArrayList<String>();
+        while (op.hasNext()) {
+            again.add(op.next().toString());
+        }
+        assertEquals(first, again);
+        op.close();
+        assertEquals(first, read(op));
+        op.close();
+    }
+
+    /**
+     * Unit test for Limit: it returns the first n tuples and reads no
+     * further from its child
+     */
+    @Test
+    public void limit() throws Exception {
+        final int[] pulled = {0};
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        TupleIterator all = TestUtil.createTupleList(2, data);
+        all.open();
+        while (all.hasNext()) {
+            tuples.add(all.next());
+        }
+        TupleIterator child = new TupleIterator(Utility.getTupleDesc(2), tuples) {
+            public Tuple next() {
+                pulled[0]++;
+                return super.next();
+            }
+        };
+        Limit op = new Limit(5, child);
+        ArrayList<String> got = read(op);
+        assertEquals(5, got.size());
+        assertEquals(5, pulled[0]);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(tuples.get(i).toString(), got.get(i));
+        }
+        op.rewind();
+        assertEquals(got.get(0), op.next().toString());
+
+        assertEquals(1000, read(new Limit(5000, TestUtil.createTupleList(2, data))).size());
+        assertEquals(0, read(new Limit(0, TestUtil.createTupleList(2, data))).size());
+    }
+
+    /**
+     * LIMIT is parsed and becomes a TopN above an ORDER BY, or a Limit
+     * without one
+     */
+    @Test
+    public void parseLimit() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, tuples, "c");
+        Database.getCatalog().addTable(f, "T");
+        TableStats.setTableStats("T", new TableStats(f.getId(), 1));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM T t ORDER BY t.c0 DESC limit 3;");
+        assertEquals(3, lp.getLimit());
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            keys.add(((IntField) plan.next().getField(0)).getValue());
+        }
+        plan.close();
+        int max = Integer.MIN_VALUE;
+        for (ArrayList<Integer> t : tuples) {
+            max = Math.max(max, t.get(0));
+        }
+        assertEquals(3, keys.size());
+        assertEquals(max, (int) keys.get(0));
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM T t LIMIT 7;").physicalPlan(tid,
+                TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        assertEquals(LogicalPlan.NO_LIMIT,
+                p.generateLogicalPlan(tid, "SELECT * FROM T t;").getLimit());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Only a LIMIT ending the first statement is split off, not one inside
+     * a string literal or a later statement
+     */
+    @Test
+    public void splitLimit() throws Exception {
+        Parser.LimitedStatement ls = Parser.splitLimit("SELECT * FROM T t LIMIT 5; SELECT * FROM T t LIMIT 6;");
+        assertEquals(5, ls.limit);
+        assertEquals("SELECT * FROM T t ; SELECT * FROM T t LIMIT 6;", ls.sql);
+
+        String quoted = "SELECT * FROM T t WHERE t.s = 'a LIMIT 5';";
+        ls = Parser.splitLimit(quoted);
+        assertEquals(LogicalPlan.NO_LIMIT, ls.limit);
+        assertEquals(quoted, ls.sql);
+        assertEquals(LogicalPlan.NO_LIMIT, Parser.splitLimit("SELECT * FROM T t").limit);
+        assertEquals(2, Parser.splitLimit("SELECT * FROM T t WHERE t.s = 'x' limit 2").limit);
+    }
+
+    // Opens op and returns its tuples as strings, in order
+    private static ArrayList<String> read(DbIterator op) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        op.open();
+        while (op.hasNext()) {
+            ret.add(op.next().toString());
+        }
+        return ret;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+/**
+ * Measures the bytes allocated per tuple when iterating over HeapPages of
+ * a ten-column table and reading one column versus all ten, with int and
+ * with string columns. Needs a JVM that reports per-thread allocation
+ * (com.sun.management.ThreadMXBean, e.g. HotSpot).
+ * <p/>
+ * Usage: java simpledb.TupleDecodingBenchmark [pages]
+ */
+public class TupleDecodingBenchmark {
+    private static final int COLUMNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.println("type\tpage setup (B/page)\t1 column (B/tuple)\t10 columns (B/tuple)\tratio");
+        Type[] kinds = {Type.INT_TYPE, Type.STRING_TYPE};
+        for (Type kind : kinds) {
+            Type[] types = new Type[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                types[i] = kind;
+            }
+            TupleDesc td = new TupleDesc(types);
+            TestUtil.SkeletonFile table = new TestUtil.SkeletonFile(kind.ordinal() + 1000, td);
+            Database.getCatalog().addTable(table, "t" + kind);
+            HeapPageId pid = new HeapPageId(table.getId(), 0);
+            byte[] data = fullPage(pid, td);
+            int tuples = HeapPage.slotsPerPage(td);
+
+            //warm up, then measure
+            scan(pid, data, pages / 10, 0);
+            scan(pid, data, pages / 10, COLUMNS);
+            long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            scan(pid, data, pages, -1);
+            long setup = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            double perPage = (double) setup / pages;
+
+            double[] perTuple = new double[2];
+            int[] touched = {1, COLUMNS};
+            for (int k = 0; k < 2; k++) {
+                before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                scan(pid, data, pages, touched[k]);
+                long bytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                perTuple[k] = (bytes - setup) / ((double) pages * tuples);
+            }
+            System.out.printf("%s\t%.0f\t%.1f\t%.1f\t%.1fx%n", kind, perPage,
+                    perTuple[0], perTuple[1], perTuple[1] / perTuple[0]);
+        }
+    }
+
+    /**
+     * Builds pages from data and reads the first columns of every tuple;
+     * with columns == -1 the tuples are not even iterated.
+     */
+    private static long scan(HeapPageId pid, byte[] data, int pages, int columns) throws Exception {
+        long sink = 0;
+        for (int p = 0; p < pages; p++) {
+            HeapPage page = new HeapPage(pid, data);
+            if (columns < 0)
+                continue;
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                for (int c = 0; c < columns; c++) {
+                    sink += t.getField(c).hashCode();
+                }
+            }
+        }
+        return sink;
+    }
+
+    private static byte[] fullPage(HeapPageId pid, TupleDesc td) throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            Tuple t = new Tuple(td);
+            for (int c = 0; c < td.numFields(); c++) {
+                if (td.getFieldType(c) == Type.INT_TYPE)
+                    t.setField(c, new IntField(i * COLUMNS + c));
+                else
+                    t.setField(c, new StringField("value " + i + "/" + c, Type.STRING_LEN));
+            }
+            page.insertTuple(t);
+        }
+        return page.getPageData();
+    }
+}
@@ -3,12 +3,16 @@ package simpledb.systemtest;
 import org.junit.Test;
 import simpledb.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * User: mhay
  * Date: 11/14/14 4:17 PM
@@ -398,4 +402,217 @@ public class LogRecoveryTest extends LogTestBase {
         t.commit();
 
     }
+
+    @Test
+    public void TestGroupCommitCrash() throws Exception {
+        setup();
+        // *** Test:
+        // two writers commit concurrently, sharing forces of the log;
+        // crash and recover: every committed row should be there
+        Database.getLogFile().setGroupCommit(2, 2000);
+        final HeapFile[] tables = {hf1, hf2};
+        final Exception[] failure = new Exception[1];
+        Thread[] writers = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int w = i;
+            writers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int v = 0; v < 20; v++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            insertRow(tables[w], t, 100 * w + v, 0);
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        if (failure[0] != null)
+            throw failure[0];
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = 0; v < 20; v++) {
+            look(hf1, t, v, true);
+            look(hf2, t, 100 + v, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void TestLogBufferFullCrash() throws Exception {
+        // *** Test:
+        // with a log buffer that holds about one UPDATE record, records
+        // are written out as it fills, not only when the log is forced;
+        // crash and recover: committed rows should be there, and a loser
+        // whose page reached disk should be undone
+        System.setProperty("simpledb.LogBufferSize", "1");
+        try {
+            setup();
+            for (int v = 0; v < 10; v++) {
+                doInsert(v % 2 == 0 ? hf1 : hf2, v, -1);
+            }
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf1, t1, 20, 0);
+            Database.getBufferPool().flushAllPages();
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            for (int v = 0; v < 10; v++) {
+                look(v % 2 == 0 ? hf1 : hf2, t, v, true);
+            }
+            look(hf1, t, 20, false);
+            t.commit();
+        } finally {
+            System.clearProperty("simpledb.LogBufferSize");
+        }
+    }
+
+    @Test
+    public void TestInsertDeleteCommitCrash() throws Exception {
+        setup();
+        // *** Test:
+        // T1 inserts a row, its page is logged and flushed, T1 deletes the
+        // row again and commits. Crash and recover: redoing the slot-level
+        // records in order should not bring the row back
+        doInsert(hf1, 1, -1);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        Database.getBufferPool().flushAllPages();
+        Tuple row = null;
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (((IntField) t.getField(0)).getValue() == 2)
+                row = t;
+        }
+        scan.close();
+        Database.getBufferPool().deleteTuple(t1.getId(), row);
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestTruncateCrash() throws Exception {
+        setup();
+        // *** Test:
+        // a checkpoint truncates the log up to T1's BEGIN, since T1 is
+        // still active; crash and recover: T1 should be undone over the
+        // truncated log and the committed rows should be there
+        File log = new File("log");
+        for (int v = 0; v < 10; v++) {
+            doInsert(hf1, v, -1);
+        }
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 20, 0);
+        Database.getBufferPool().flushAllPages();
+        long before = log.length();
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().truncateInBackground().get();
+        assertTrue(log.length() < before);
+
+        doInsert(hf1, 21, -1);
+        insertRow(hf2, t1, 22, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = 0; v < 10; v++) {
+            look(hf1, t, v, true);
+        }
+        look(hf2, t, 20, false);
+        look(hf1, t, 21, true);
+        look(hf2, t, 22, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestTruncateConcurrentCrash() throws Exception {
+        setup();
+        // *** Test:
+        // checkpoints truncate the log while another thread commits, so
+        // records are appended while the kept ones are copied; crash and
+        // recover: every committed row should be there
+        final Exception[] failed = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int v = 0; v < 100; v++) {
+                        doInsert(hf2, v, -1);
+                    }
+                } catch (Exception e) {
+                    failed[0] = e;
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            Database.getLogFile().logCheckpoint();
+        }
+        writer.join();
+        if (failed[0] != null)
+            throw failed[0];
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = 0; v < 100; v++) {
+            look(hf2, t, v, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void TestShutdownCrash() throws Exception {
+        setup();
+        // *** Test:
+        // shut down while T1 has a dirty page: shutdown writes it and
+        // checkpoints before closing the log; restart and recover: T1
+        // should be undone and the committed rows should be there
+        for (int v = 0; v < 10; v++) {
+            doInsert(hf1, v, -1);
+        }
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 20, 0);
+        assertFalse(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        Database.getLogFile().shutdown();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = 0; v < 10; v++) {
+            look(hf1, t, v, true);
+        }
+        look(hf2, t, 20, false);
+        t.commit();
+    }
 }